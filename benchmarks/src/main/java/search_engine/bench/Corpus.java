@@ -0,0 +1,168 @@
+package search_engine.bench;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+import search_engine.indexer.IndexController;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Deterministic test corpus for the benchmarks. Files are generated from a
+ * fixed seed, so every run, on every machine, indexes and searches exactly
+ * the same text.
+ */
+public final class Corpus {
+
+    public static final long SEED = 20190601;
+
+    public static final String[] ENGLISH = {
+            "the", "of", "and", "to", "in", "is", "that", "for", "it", "with", "as", "was", "on", "be", "by",
+            "report", "river", "quiet", "market", "winter", "engine", "search", "index", "letter", "garden",
+            "number", "system", "window", "people", "history", "morning", "question", "company", "student",
+            "evening", "journey", "picture", "silver", "harbour", "machine", "library", "mountain", "village",
+            "kitchen", "stranger", "thunder", "lantern", "orchard", "quarter", "shoulder", "meadow", "fortune"
+    };
+
+    public static final String[] POLISH = {
+            "i", "w", "nie", "na", "się", "z", "do", "to", "że", "jest", "jak", "o", "ale", "po", "co",
+            "raport", "rzeka", "cichy", "rynek", "zima", "silnik", "szukanie", "indeks", "list", "ogród",
+            "liczba", "system", "okno", "ludzie", "historia", "poranek", "pytanie", "firma", "student",
+            "wieczór", "podróż", "obraz", "srebro", "port", "maszyna", "biblioteka", "góra", "wieś",
+            "kuchnia", "nieznajomy", "grzmot", "latarnia", "sad", "kwartał", "ramię", "łąka", "szczęście"
+    };
+
+    private Corpus() {
+    }
+
+    /**
+     * Generates text from the vocabulary, skewed so that a few words are very
+     * common and most are rare, as in natural text.
+     */
+    public static String text(Random random, String[] vocabulary, int words) {
+        StringBuilder text = new StringBuilder(words * 8);
+        for (int i = 0; i < words; i++) {
+            int rank = (int) (vocabulary.length * Math.pow(random.nextDouble(), 3));
+            text.append(vocabulary[rank]).append(i % 12 == 11 ? ".\n" : " ");
+        }
+        return text.toString();
+    }
+
+    /**
+     * Writes the given number of files of the given format (txt, pdf or docx)
+     * to a directory. A quarter of the text files are Polish; PDFs are all
+     * English, as the standard PDF fonts cannot encode Polish letters.
+     */
+    public static List<File> generate(Path dir, String format, int files, int words) throws IOException {
+        Files.createDirectories(dir);
+        Random random = new Random(SEED);
+        List<File> generated = new ArrayList<>(files);
+        for (int i = 0; i < files; i++) {
+            boolean polish = !format.equals("pdf") && i % 4 == 0;
+            String text = text(random, polish ? POLISH : ENGLISH, words);
+            File file = dir.resolve(String.format("doc-%05d.%s", i, format)).toFile();
+            switch (format) {
+                case "txt":
+                    Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+                    break;
+                case "pdf":
+                    writePdf(file, text);
+                    break;
+                case "docx":
+                    writeDocx(file, text);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown format " + format);
+            }
+            generated.add(file);
+        }
+        return generated;
+    }
+
+    private static void writePdf(File file, String text) throws IOException {
+        String[] lines = text.split("\n");
+        try (PDDocument document = new PDDocument()) {
+            for (int first = 0; first < lines.length; first += 48) {
+                PDPage page = new PDPage();
+                document.addPage(page);
+                try (PDPageContentStream content = new PDPageContentStream(document, page)) {
+                    content.beginText();
+                    content.setFont(PDType1Font.HELVETICA, 10);
+                    content.setLeading(14);
+                    content.newLineAtOffset(50, 730);
+                    for (int i = first; i < Math.min(first + 48, lines.length); i++) {
+                        content.showText(lines[i]);
+                        content.newLine();
+                    }
+                    content.endText();
+                }
+            }
+            document.save(file);
+        }
+    }
+
+    private static void writeDocx(File file, String text) throws IOException {
+        try (XWPFDocument document = new XWPFDocument();
+             OutputStream out = Files.newOutputStream(file.toPath())) {
+            for (String line: text.split("\n"))
+                document.createParagraph().createRun().setText(line);
+            document.write(out);
+        }
+    }
+
+    /**
+     * Generates a text corpus in {@code workDir/corpus} and indexes it into
+     * {@code workDir/index}, returning the index path.
+     */
+    public static Path buildIndex(Path workDir, int files, int words) throws IOException {
+        Path corpus = workDir.resolve("corpus"), index = workDir.resolve("index");
+        generate(corpus, "txt", files, words);
+        PrintStream stdout = silenceStdout();
+        try {
+            new IndexController(index).index(corpus.toFile());
+        } finally {
+            System.setOut(stdout);
+        }
+        return index;
+    }
+
+    /**
+     * Stops the indexer's per-file progress messages from swamping the
+     * benchmark output; returns the stream to restore afterwards.
+     */
+    public static PrintStream silenceStdout() {
+        PrintStream stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        return stdout;
+    }
+
+    public static void delete(Path dir) throws IOException {
+        if (!Files.exists(dir))
+            return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path: (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package search_engine.bench;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import search_engine.indexer.IndexController;
+import search_engine.search.QueryExecutor;
+import search_engine.search.SearchRequest;
+import search_engine.search.SearchResults;
+import search_engine.search.SearchResults.SearchResult;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end benchmark of watch mode under file system event storms. Starts
+ * the indexer watching a fresh temporary tree, then runs scripted storms
+ * against it, one after another:
+ *
+ * <ul>
+ *     <li>unzip: many new files in many new directories,</li>
+ *     <li>checkout: half of those files rewritten at once,</li>
+ *     <li>append: one file written in many small chunks,</li>
+ *     <li>delete: the whole tree removed.</li>
+ * </ul>
+ *
+ * For every file touched by a storm it measures how long after the last
+ * write the change became visible to a searcher, polling the index every
+ * {@code --poll-ms}. Changes not visible within {@code --timeout-secs} are
+ * counted as missing. Watch events and overflows come from the indexer's
+ * JMX metrics; process CPU and heap are sampled every second. Indexer,
+ * searcher and storms share one JVM, so the CPU figures include the polling.
+ *
+ * The report is written as JSON, to be kept and compared across releases:
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar search_engine.bench.WatchStormHarness
+ *      [--files n] [--quiet-ms n] [--commit-ms n] [--poll-ms n] [--timeout-secs n] [--report file]
+ * </pre>
+ */
+public class WatchStormHarness {
+
+    static class ScenarioResult {
+        String name;
+        int files;
+        double stormSeconds;
+        double p50Ms, p95Ms, p99Ms, maxMs;
+        int missing;
+        long events;
+        long overflows;
+        long indexed;
+    }
+
+    static class Sample {
+        double seconds;
+        double cpu;
+        long heapMb;
+        long pendingEvents;
+    }
+
+    static class Report {
+        String started = Instant.now().toString();
+        String java = System.getProperty("java.version");
+        String os = System.getProperty("os.name") + " " + System.getProperty("os.version");
+        int cores = Runtime.getRuntime().availableProcessors();
+        Map<String, Object> options = new LinkedHashMap<>();
+        List<ScenarioResult> scenarios = new ArrayList<>();
+        List<Sample> samples = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    private static final String COMMON_TOKEN = "stormfile";
+
+    private final Path root;
+    private final QueryExecutor searcher;
+    private final int pollMillis;
+    private final long timeoutMillis;
+    private final PrintStream out;
+    private final Random random = new Random(Corpus.SEED);
+    private final List<Path> files = new ArrayList<>();
+
+    private WatchStormHarness(Path root, QueryExecutor searcher, int pollMillis, long timeoutMillis, PrintStream out) {
+        this.root = root;
+        this.searcher = searcher;
+        this.pollMillis = pollMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int fileCount = 10_000, quietMillis = 500, commitMillis = 1000, pollMillis = 100, timeoutSeconds = 300;
+        Path reportPath = Paths.get("watch-storm-report.json");
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--files": fileCount = Integer.parseInt(args[++i]); break;
+                    case "--quiet-ms": quietMillis = Integer.parseInt(args[++i]); break;
+                    case "--commit-ms": commitMillis = Integer.parseInt(args[++i]); break;
+                    case "--poll-ms": pollMillis = Integer.parseInt(args[++i]); break;
+                    case "--timeout-secs": timeoutSeconds = Integer.parseInt(args[++i]); break;
+                    case "--report": reportPath = Paths.get(args[++i]); break;
+                    default: throw new IllegalArgumentException(args[i]);
+                }
+            }
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.err.println("Usage: java " + WatchStormHarness.class.getName()
+                    + " [--files <n>] [--quiet-ms <n>] [--commit-ms <n>] [--poll-ms <n>]"
+                    + " [--timeout-secs <n>] [--report <file>]");
+            System.exit(1);
+        }
+
+        Report report = new Report();
+        report.options.put("files", fileCount);
+        report.options.put("quietMillis", quietMillis);
+        report.options.put("commitMillis", commitMillis);
+        report.options.put("pollMillis", pollMillis);
+        report.options.put("timeoutSeconds", timeoutSeconds);
+
+        Path workDir = Files.createTempDirectory("watch-storm");
+        Path tree = Files.createDirectories(workDir.resolve("tree"));
+        Path index = workDir.resolve("index");
+        PrintStream stdout = Corpus.silenceStdout();
+
+        IndexController indexer = new IndexController(index);
+        indexer.setQuietMillis(quietMillis);
+        indexer.setCommitMaxDelayMillis(commitMillis);
+        indexer.index(tree.toFile());
+        Thread watcher = new Thread(indexer::watch, "watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+
+        ScheduledExecutorService sampler = startSampling(report);
+        QueryExecutor searcher = new QueryExecutor(index);
+        searcher.setRefreshSeconds(0);
+        searcher.setCacheBytes(0);
+        waitForEvents(tree, searcher);
+
+        WatchStormHarness harness = new WatchStormHarness(tree, searcher, pollMillis, timeoutSeconds * 1000L, stdout);
+        report.scenarios.add(harness.unzip(fileCount));
+        report.scenarios.add(harness.checkout());
+        report.scenarios.add(harness.append(200));
+        report.scenarios.add(harness.delete());
+
+        sampler.shutdownNow();
+        try (Writer writer = Files.newBufferedWriter(reportPath, StandardCharsets.UTF_8)) {
+            Gson gson = new GsonBuilder().setPrettyPrinting().create();
+            gson.toJson(report, writer);
+        }
+        stdout.printf("Report written to %s%n", reportPath.toAbsolutePath());
+
+        searcher.close();
+        Corpus.delete(workDir);
+        System.exit(0);
+    }
+
+    /**
+     * Waits until the watcher has registered the tree, by writing a probe
+     * file until it becomes searchable.
+     */
+    private static void waitForEvents(Path tree, QueryExecutor searcher) throws IOException, InterruptedException {
+        Path probe = tree.resolve("probe.txt");
+        for (int attempt = 0; ; attempt++) {
+            Files.write(probe, ("harness probe " + attempt).getBytes(StandardCharsets.UTF_8));
+            Thread.sleep(2000);
+            searcher.refresh();
+            try (SearchResults results = searcher.search(new SearchRequest().forQuery("probe"))) {
+                if (results.size() > 0)
+                    break;
+            }
+        }
+        Files.delete(probe);
+    }
+
+    private static ScheduledExecutorService startSampling(Report report) {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        long start = System.nanoTime();
+        long[] previous = {start, cpuNanos(os)};
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(() -> {
+            long now = System.nanoTime(), cpu = cpuNanos(os);
+            Sample sample = new Sample();
+            sample.seconds = (now - start) / 1e9;
+            sample.cpu = cpu >= 0 ? (cpu - previous[1]) / (double) (now - previous[0]) : -1;
+            sample.heapMb = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() >> 20;
+            sample.pendingEvents = indexerMetric("events.pending");
+            report.samples.add(sample);
+            previous[0] = now;
+            previous[1] = cpu;
+        }, 1, 1, TimeUnit.SECONDS);
+        return sampler;
+    }
+
+    /**
+     * Returns the CPU time used by this process, or -1 if the JVM cannot tell.
+     */
+    private static long cpuNanos(OperatingSystemMXBean os) {
+        if (os instanceof com.sun.management.OperatingSystemMXBean)
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        return -1;
+    }
+
+    private static long indexerMetric(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            return ((Number) server.getAttribute(new ObjectName("search_engine", "type", "Indexer"), name)).longValue();
+        } catch (JMException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Returns the indexer's event, overflow and indexed file counters, to take
+     * differences of.
+     */
+    private static long[] counters() {
+        return new long[] {indexerMetric("events"), indexerMetric("events.overflow"), indexerMetric("files.indexed")};
+    }
+
+    private String content(String token) {
+        return COMMON_TOKEN + " " + token + "\n" + Corpus.text(random, Corpus.ENGLISH, 60);
+    }
+
+    private ScenarioResult unzip(int count) throws IOException, InterruptedException {
+        Map<Path, Long> written = new LinkedHashMap<>();
+        long start = System.nanoTime();
+        long[] before = counters();
+        for (int i = 0; i < count; i++) {
+            Path dir = root.resolve(String.format("d%03d", i / 100));
+            if (i % 100 == 0)
+                Files.createDirectories(dir);
+            Path file = dir.resolve(String.format("f%05d.txt", i));
+            Files.write(file, content("markunzip").getBytes(StandardCharsets.UTF_8));
+            written.put(file, System.currentTimeMillis());
+            files.add(file);
+        }
+        return measure("unzip", "markunzip", written, true, start, before);
+    }
+
+    private ScenarioResult checkout() throws IOException, InterruptedException {
+        Map<Path, Long> written = new LinkedHashMap<>();
+        long start = System.nanoTime();
+        long[] before = counters();
+        for (int i = 0; i < files.size(); i += 2) {
+            Path file = files.get(i);
+            Files.write(file, content("markcheckout").getBytes(StandardCharsets.UTF_8));
+            written.put(file, System.currentTimeMillis());
+        }
+        return measure("checkout", "markcheckout", written, true, start, before);
+    }
+
+    private ScenarioResult append(int chunks) throws IOException, InterruptedException {
+        Path file = root.resolve("growing.log");
+        long start = System.nanoTime();
+        long[] before = counters();
+        for (int i = 0; i < chunks; i++) {
+            String chunk = i == chunks - 1 ? content("markappend") : Corpus.text(random, Corpus.ENGLISH, 20);
+            Files.write(file, chunk.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            Thread.sleep(5);
+        }
+        files.add(file);
+        return measure("append", "markappend", Collections.singletonMap(file, System.currentTimeMillis()), true, start, before);
+    }
+
+    private ScenarioResult delete() throws IOException, InterruptedException {
+        Map<Path, Long> deleted = new LinkedHashMap<>();
+        long start = System.nanoTime();
+        long[] before = counters();
+        for (File dir: root.toFile().listFiles()) {
+            List<Path> inside = new ArrayList<>();
+            if (dir.isDirectory())
+                for (File file: dir.listFiles())
+                    inside.add(file.toPath());
+            else
+                inside.add(dir.toPath());
+            Corpus.delete(dir.toPath());
+            long now = System.currentTimeMillis();
+            for (Path file: inside)
+                deleted.put(file, now);
+        }
+        return measure("delete", COMMON_TOKEN, deleted, false, start, before);
+    }
+
+    /**
+     * Polls the index until every file in {@code changed} is (or, for deletes,
+     * is no longer) among the hits for the token, recording the latency of each.
+     */
+    private ScenarioResult measure(String name, String token, Map<Path, Long> changed, boolean present,
+                                   long stormStart, long[] before) throws IOException, InterruptedException {
+        ScenarioResult result = new ScenarioResult();
+        result.name = name;
+        result.files = changed.size();
+        result.stormSeconds = (System.nanoTime() - stormStart) / 1e9;
+
+        SearchRequest request = new SearchRequest().forQuery(token);
+        request.setPageSize(10_000);
+        Map<String, Long> pending = new LinkedHashMap<>();
+        for (Map.Entry<Path, Long> change: changed.entrySet())
+            pending.put(change.getKey().toString(), change.getValue());
+        List<Long> latencies = new ArrayList<>(changed.size());
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!pending.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(pollMillis);
+            searcher.refresh();
+            Set<String> hits = new HashSet<>();
+            try (SearchResults results = searcher.search(request)) {
+                for (SearchResult hit: results)
+                    hits.add(hit.getPath());
+            }
+            long now = System.currentTimeMillis();
+            pending.entrySet().removeIf(change -> {
+                if (hits.contains(change.getKey()) != present)
+                    return false;
+                latencies.add(now - change.getValue());
+                return true;
+            });
+        }
+
+        Collections.sort(latencies);
+        result.p50Ms = percentile(latencies, 0.5);
+        result.p95Ms = percentile(latencies, 0.95);
+        result.p99Ms = percentile(latencies, 0.99);
+        result.maxMs = latencies.isEmpty() ? 0 : latencies.get(latencies.size() - 1);
+        result.missing = pending.size();
+        long[] after = counters();
+        result.events = after[0] - before[0];
+        result.overflows = after[1] - before[1];
+        result.indexed = after[2] - before[2];
+
+        out.printf("%-9s %6d files, storm %.1f s, latency p50 %.0f ms p95 %.0f ms p99 %.0f ms max %.0f ms, "
+                        + "%d missing, %d events, %d overflows, %d files indexed%n",
+                name, result.files, result.stormSeconds, result.p50Ms, result.p95Ms, result.p99Ms, result.maxMs,
+                result.missing, result.events, result.overflows, result.indexed);
+        return result;
+    }
+
+    private static double percentile(List<Long> sorted, double quantile) {
+        if (sorted.isEmpty())
+            return 0;
+        return sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(quantile * sorted.size()) - 1));
+    }
+}
@@ -0,0 +1,61 @@
+package search_engine.indexer;
+
+import org.openjdk.jmh.annotations.*;
+import search_engine.bench.Corpus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to extract, detect the language of and index a single file, by
+ * format. Files are indexed over and over, each time replacing the previous
+ * document, with commits grouped as in a real run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class IndexingBenchmark {
+
+    @Param({"txt", "pdf", "docx"})
+    public String format;
+
+    @Param({"2000"})
+    public int words;
+
+    private Path workDir;
+    private List<File> files;
+    private PrintStream stdout;
+    private IndexController controller;
+    private Shard shard;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("indexing-benchmark");
+        files = Corpus.generate(workDir.resolve("corpus"), format, 100, words);
+        stdout = Corpus.silenceStdout();
+        controller = new IndexController(workDir.resolve("index"));
+        shard = controller.getMainShard();
+        controller.startWriting(shard);
+    }
+
+    @Benchmark
+    public void indexDocument() {
+        controller.indexDocument(files.get(next++ % files.size()), shard);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        controller.stopWriting(shard);
+        System.setOut(stdout);
+        Corpus.delete(workDir);
+    }
+}
@@ -0,0 +1,43 @@
+package search_engine.indexer;
+
+import org.openjdk.jmh.annotations.*;
+import search_engine.bench.Corpus;
+import search_engine.metrics.Timer;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Language detection on texts of different lengths; past the sample size the
+ * cost should stay flat.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LanguageDetectionBenchmark {
+
+    @Param({"en", "pl"})
+    public String language;
+
+    @Param({"1000", "100000"})
+    public int chars;
+
+    private LanguageDetectionService detection;
+    private String text;
+
+    @Setup
+    public void setUp() {
+        detection = new LanguageDetectionService(new Timer());
+        String words = Corpus.text(new Random(Corpus.SEED), language.equals("pl") ? Corpus.POLISH : Corpus.ENGLISH,
+                chars / 3);
+        text = words.substring(0, Math.min(chars, words.length()));
+    }
+
+    @Benchmark
+    public String detect() {
+        return detection.detect(text);
+    }
+}
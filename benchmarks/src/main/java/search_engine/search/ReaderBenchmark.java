@@ -0,0 +1,75 @@
+package search_engine.search;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.openjdk.jmh.annotations.*;
+import search_engine.bench.Corpus;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opening the index from scratch, against refreshing an open searcher after
+ * a small commit, which only has to open the new segment.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ReaderBenchmark {
+
+    private Path workDir;
+    private Directory directory;
+    private IndexWriter writer;
+    private QueryExecutor executor;
+    private int added = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("reader-benchmark");
+        Path index = Corpus.buildIndex(workDir, 2000, 500);
+        directory = FSDirectory.open(index);
+        writer = new IndexWriter(directory, new IndexWriterConfig(new StandardAnalyzer()));
+        executor = new QueryExecutor(index);
+        executor.setRefreshSeconds(0);
+    }
+
+    @Setup(Level.Invocation)
+    public void commitOneDocument() throws IOException {
+        Document doc = new Document();
+        doc.add(new StringField("path", workDir.resolve("added-" + added++).toString(), Field.Store.YES));
+        writer.addDocument(doc);
+        writer.commit();
+    }
+
+    @Benchmark
+    public int open() throws IOException {
+        try (DirectoryReader reader = DirectoryReader.open(directory)) {
+            return reader.maxDoc();
+        }
+    }
+
+    @Benchmark
+    public void refresh() {
+        executor.refresh();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        executor.close();
+        writer.close();
+        directory.close();
+        Corpus.delete(workDir);
+    }
+}
@@ -0,0 +1,69 @@
+package search_engine.search;
+
+import org.openjdk.jmh.annotations.*;
+import search_engine.bench.Corpus;
+import search_engine.search.SearchResults.SearchResult;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A query and its first hundred results, in each mode, with and without
+ * highlighted context. The result cache is off so every query is run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SearchBenchmark {
+
+    private static final String[] TERMS = {"report", "river", "market", "engine", "garden", "history", "winter"};
+    private static final String[] PHRASES = {"quiet river", "market report", "winter garden", "village library", "silver harbour"};
+    private static final String[] MISSPELT = {"reprot", "rivr", "markett", "engin", "gardne", "histroy", "wintr"};
+
+    @Param({"TERM", "PHRASE", "FUZZY"})
+    public QueryExecutor.Mode mode;
+
+    @Param({"false", "true"})
+    public boolean details;
+
+    private Path workDir;
+    private QueryExecutor executor;
+    private SearchRequest settings;
+    private String[] queries;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("search-benchmark");
+        executor = new QueryExecutor(Corpus.buildIndex(workDir, 2000, 500));
+        executor.setCacheBytes(0);
+
+        settings = new SearchRequest();
+        settings.setMode(mode);
+        settings.setDetails(details);
+        settings.setColor(false);
+        settings.setLimit(100);
+        queries = mode == QueryExecutor.Mode.PHRASE ? PHRASES : mode == QueryExecutor.Mode.FUZZY ? MISSPELT : TERMS;
+    }
+
+    @Benchmark
+    public int search() throws IOException {
+        int count = 0;
+        try (SearchResults results = executor.search(settings.forQuery(queries[next++ % queries.length]))) {
+            for (SearchResult result: results)
+                count += result.getPath().length();
+        }
+        return count;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        executor.close();
+        Corpus.delete(workDir);
+    }
+}
@@ -0,0 +1,77 @@
+package search_engine.indexer;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads a fixed head followed by the text of another reader, stopping after
+ * a maximum number of characters. Remembers whether anything was cut off.
+ */
+class BoundedReader extends Reader {
+
+    private final String head;
+    private final Reader body;
+    private int headPos = 0;
+    private long remaining;
+    private boolean truncated = false;
+    private long readNanos = 0;
+
+    BoundedReader (String head, Reader body, long maxChars) {
+        this.head = head;
+        this.body = body;
+        this.remaining = maxChars;
+    }
+
+    @Override
+    public int read (char[] buf, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        if (remaining <= 0) {
+            if (!truncated)
+                try {
+                    truncated = body.read() != -1;
+                } catch (IOException e) {
+                    /* Whatever went wrong past the limit does not matter */
+                    truncated = true;
+                }
+            return -1;
+        }
+        len = (int) Math.min(len, remaining);
+
+        int n;
+        if (headPos < head.length()) {
+            n = Math.min(len, head.length() - headPos);
+            head.getChars(headPos, headPos + n, buf, off);
+            headPos += n;
+        } else {
+            long start = System.nanoTime();
+            n = body.read(buf, off, len);
+            readNanos += System.nanoTime() - start;
+            if (n < 0)
+                return -1;
+        }
+        remaining -= n;
+        return n;
+    }
+
+    /**
+     * Whether the text went on past the maximum length; only known once the
+     * reader has been read to its end.
+     */
+    boolean isTruncated () {
+        return truncated;
+    }
+
+    /**
+     * Returns the time spent waiting for the text, which for a background
+     * parse is the time the reader was held up by the parser.
+     */
+    long getReadNanos () {
+        return readNanos;
+    }
+
+    @Override
+    public void close () throws IOException {
+        body.close();
+    }
+}
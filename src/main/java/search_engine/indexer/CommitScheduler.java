@@ -0,0 +1,133 @@
+package search_engine.indexer;
+
+import org.apache.lucene.index.IndexWriter;
+import search_engine.metrics.Timer;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Groups changes made through an IndexWriter into a single commit. A commit is
+ * issued once enough documents or bytes are pending, once the oldest pending
+ * change is older than the allowed delay, and on close.
+ *
+ * Changes are applied under a shared lock and commits under an exclusive one,
+ * so listeners run right after a commit see exactly the changes it made durable.
+ */
+class CommitScheduler implements AutoCloseable {
+
+    interface Change {
+        void apply(IndexWriter writer) throws IOException;
+    }
+
+    static final int DEFAULT_MAX_DOCS = 1000;
+    static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    static final long DEFAULT_MAX_DELAY_MILLIS = 10_000;
+
+    private final IndexWriter writer;
+    private final int maxDocs;
+    private final long maxBytes;
+    private final long maxDelayMillis;
+    private final ScheduledExecutorService timer;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<Runnable> commitListeners = new CopyOnWriteArrayList<>();
+    private final Timer commits;
+
+    private int pendingDocs = 0;
+    private long pendingBytes = 0;
+    private long oldestPending = 0;
+
+    CommitScheduler(IndexWriter writer, int maxDocs, long maxBytes, long maxDelayMillis, Timer commits) {
+        this.writer = writer;
+        this.commits = commits;
+        this.maxDocs = maxDocs;
+        this.maxBytes = maxBytes;
+        this.maxDelayMillis = maxDelayMillis;
+
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "commit-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long tick = Math.max(1, Math.min(maxDelayMillis, 1000));
+        timer.scheduleWithFixedDelay(this::commitIfStale, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    IndexWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * Registers an action run after every commit, while no changes are being applied.
+     */
+    void addCommitListener(Runnable listener) {
+        commitListeners.add(listener);
+    }
+
+    /**
+     * Applies a change of the given size, committing if a threshold is reached.
+     */
+    void change(long bytes, Change change) throws IOException {
+        lock.readLock().lock();
+        try {
+            change.apply(writer);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        boolean due;
+        synchronized (this) {
+            if (pendingDocs == 0)
+                oldestPending = System.currentTimeMillis();
+            pendingDocs++;
+            pendingBytes += bytes;
+            due = pendingDocs >= maxDocs || pendingBytes >= maxBytes;
+        }
+        if (due)
+            commit();
+    }
+
+    private void commitIfStale() {
+        boolean due;
+        synchronized (this) {
+            due = pendingDocs > 0 && System.currentTimeMillis() - oldestPending >= maxDelayMillis;
+        }
+        if (due)
+            commit();
+    }
+
+    void commit() {
+        synchronized (this) {
+            if (pendingDocs == 0)
+                return;
+            pendingDocs = 0;
+            pendingBytes = 0;
+        }
+        lock.writeLock().lock();
+        try {
+            if (writer.isOpen()) {
+                long start = System.nanoTime();
+                writer.commit();
+                commits.recordSince(start);
+                for (Runnable listener: commitListeners)
+                    listener.run();
+            }
+        } catch (IOException e) {
+            System.err.printf("Error committing index: %s%n", e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        commit();
+    }
+}
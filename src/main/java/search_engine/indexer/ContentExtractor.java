@@ -0,0 +1,137 @@
+package search_engine.indexer;
+
+import org.apache.tika.Tika;
+import org.apache.tika.fork.ForkParser;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.parser.ParsingReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Turns a file into the text that gets indexed. The searcher uses it too, to
+ * recover the text of documents whose content is not stored in the index, so
+ * both sides must produce exactly the same text for highlight offsets to match.
+ * A text cut off at some length is always a prefix of the full text, so the
+ * two sides may use different limits.
+ *
+ * Parsing can be given a deadline and moved out to a pool of child JVMs,
+ * which are killed and replaced when a parse times out or crashes them.
+ */
+public class ContentExtractor {
+
+    public static final int DEFAULT_FORK_HEAP_MB = 256;
+
+    private Tika tika = null;
+    private Parser forkParser = null;
+    private long timeoutMillis = 0;
+    private int forkedParsers = 0;
+    private int forkHeapMb = DEFAULT_FORK_HEAP_MB;
+    private ScheduledExecutorService timer = null;
+
+    /**
+     * Sets how long the text of a single file may take to extract; 0 means no limit.
+     */
+    public synchronized void setTimeoutMillis(long timeoutMillis) {
+        if (timeoutMillis >= 0)
+            this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Makes parsing run in the given number of child JVMs, each with the given
+     * heap size, instead of in this one. Must be called before the first file
+     * is extracted.
+     */
+    public synchronized void setForkedParsers(int parsers, int heapMb) {
+        if (parsers >= 0)
+            this.forkedParsers = parsers;
+        if (heapMb > 0)
+            this.forkHeapMb = heapMb;
+    }
+
+    private synchronized Tika tika() {
+        if (tika != null)
+            return tika;
+
+        if (forkedParsers > 0) {
+            ForkParser parser = new ForkParser(ContentExtractor.class.getClassLoader(), new AutoDetectParser());
+            parser.setPoolSize(forkedParsers);
+            parser.setJavaCommand(Arrays.asList(
+                    Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-Xmx" + forkHeapMb + "m"));
+            if (timeoutMillis > 0)
+                parser.setServerParseTimeoutMillis(timeoutMillis);
+            Runtime.getRuntime().addShutdownHook(new Thread(parser::close));
+            forkParser = parser;
+        }
+        tika = new Tika();
+
+        if (timeoutMillis > 0)
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "extraction-deadlines");
+                thread.setDaemon(true);
+                return thread;
+            });
+        return tika;
+    }
+
+    /**
+     * Opens the text of a file: its name, a newline, then the extracted body,
+     * at most {@code maxChars} characters in all. Tika parses in the background
+     * as the text is read, so memory use does not grow with the file size.
+     * Reads fail with an {@link ExtractionException} if the file cannot be
+     * parsed or parsing takes too long.
+     */
+    BoundedReader open(File file, long maxChars) throws IOException {
+        Reader body;
+        if (file.length() > 0) {
+            Tika tika = tika();
+            Reader parsed;
+            if (forkParser != null) {
+                /* Same as Tika.parse, except the context has to be serializable */
+                Metadata metadata = new Metadata();
+                ParseContext context = new ParseContext();
+                context.set(Parser.class, new AutoDetectParser());
+                parsed = new ParsingReader(forkParser, TikaInputStream.get(file.toPath(), metadata), metadata, context);
+            } else
+                parsed = tika.parse(file);
+            body = new GuardedReader(parsed, timeoutMillis, timer);
+        } else
+            body = new StringReader("");
+        return new BoundedReader(file.getName().concat("\n"), body, maxChars);
+    }
+
+    /**
+     * Returns the media type of a file, detected from its name and first bytes.
+     */
+    String detect(File file) throws IOException {
+        return tika().detect(file);
+    }
+
+    public String extract(File file, long maxChars) throws IOException {
+        try (Reader text = open(file, maxChars)) {
+            return readAll(text);
+        }
+    }
+
+    public String extract(File file) throws IOException {
+        return extract(file, Integer.MAX_VALUE);
+    }
+
+    static String readAll(Reader text) throws IOException {
+        StringBuilder content = new StringBuilder();
+        char[] buf = new char[8192];
+        for (int n; (n = text.read(buf)) != -1; )
+            content.append(buf, 0, n);
+        return content.toString();
+    }
+}
@@ -0,0 +1,17 @@
+package search_engine.indexer;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the text of a file could not be extracted because of the file
+ * itself: the parser failed on it, ran out of memory or took too long. Such
+ * files are not worth retrying until they change.
+ */
+class ExtractionException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    ExtractionException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
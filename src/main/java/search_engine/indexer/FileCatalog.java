@@ -0,0 +1,223 @@
+package search_engine.indexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.*;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persistent record of the files present in the index: their size and
+ * modification time when indexed, an optional content hash and the index
+ * format version they were indexed with. Consulted before parsing so that
+ * unchanged files are skipped. Files that could not be parsed are recorded
+ * too, with the error, so they are skipped as well until they change.
+ *
+ * Updates are kept in an open transaction and made durable by {@link #commit()},
+ * which is meant to run right after the corresponding index commit.
+ */
+class FileCatalog {
+
+    static class Entry {
+        final long size;
+        final long modified;
+        final String hash;
+        final int version;
+        final String error;
+
+        Entry(long size, long modified, String hash, int version, String error) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.version = version;
+            this.error = error;
+        }
+
+        boolean isCurrent(long size, long modified, int version) {
+            return this.size == size && this.modified == modified && this.version == version;
+        }
+    }
+
+    private final Connection connection;
+
+    FileCatalog(Path dbPath) throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS files ("
+                    + "path TEXT PRIMARY KEY, size INTEGER NOT NULL, modified INTEGER NOT NULL, "
+                    + "hash TEXT, version INTEGER NOT NULL, error TEXT)");
+            boolean hasError = false;
+            try (ResultSet columns = statement.executeQuery("PRAGMA table_info(files)")) {
+                while (columns.next())
+                    hasError |= columns.getString("name").equals("error");
+            }
+            if (!hasError)
+                statement.executeUpdate("ALTER TABLE files ADD COLUMN error TEXT");
+        }
+        connection.setAutoCommit(false);
+    }
+
+    /**
+     * Returns the entries of all files below the given directory.
+     */
+    synchronized Map<String, Entry> snapshot(String dir) {
+        return entries(dir, false);
+    }
+
+    /**
+     * Returns the entries of the files directly in the given directory.
+     */
+    synchronized Map<String, Entry> children(String dir) {
+        return entries(dir, true);
+    }
+
+    private Map<String, Entry> entries(String dir, boolean direct) {
+        Map<String, Entry> entries = new HashMap<>();
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT path, size, modified, hash, version, error FROM files WHERE path > ? AND path < ?")) {
+            select.setString(1, dir + File.separatorChar);
+            select.setString(2, dir + (char) (File.separatorChar + 1));
+            try (ResultSet rows = select.executeQuery()) {
+                while (rows.next()) {
+                    String path = rows.getString(1);
+                    /* Filtered here: SQLite counts characters, not the UTF-16 units of Java strings */
+                    if (direct && path.indexOf(File.separatorChar, dir.length() + 1) >= 0)
+                        continue;
+                    entries.put(path,
+                            new Entry(rows.getLong(2), rows.getLong(3), rows.getString(4), rows.getInt(5), rows.getString(6)));
+                }
+            }
+        } catch (SQLException e) {
+            System.err.printf("Error reading catalog: %s%n", e.getMessage());
+        }
+        return entries;
+    }
+
+    synchronized Entry get(String path) {
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT size, modified, hash, version, error FROM files WHERE path = ?")) {
+            select.setString(1, path);
+            try (ResultSet rows = select.executeQuery()) {
+                if (rows.next())
+                    return new Entry(rows.getLong(1), rows.getLong(2), rows.getString(3), rows.getInt(4), rows.getString(5));
+            }
+        } catch (SQLException e) {
+            System.err.printf("Error reading catalog: %s%n", e.getMessage());
+        }
+        return null;
+    }
+
+    synchronized void record(String path, long size, long modified, String hash, int version) {
+        record(path, size, modified, hash, version, null);
+    }
+
+    /**
+     * Records a file that could not be parsed, along with the reason.
+     */
+    synchronized void recordFailure(String path, long size, long modified, int version, String error) {
+        record(path, size, modified, null, version, error);
+    }
+
+    private void record(String path, long size, long modified, String hash, int version, String error) {
+        try (PreparedStatement upsert = connection.prepareStatement(
+                "INSERT OR REPLACE INTO files (path, size, modified, hash, version, error) VALUES (?, ?, ?, ?, ?, ?)")) {
+            upsert.setString(1, path);
+            upsert.setLong(2, size);
+            upsert.setLong(3, modified);
+            upsert.setString(4, hash);
+            upsert.setInt(5, version);
+            upsert.setString(6, error);
+            upsert.executeUpdate();
+        } catch (SQLException e) {
+            System.err.printf("Error updating catalog for %s: %s%n", path, e.getMessage());
+        }
+    }
+
+    /**
+     * Removes the given path and, if it is a directory, everything below it.
+     */
+    synchronized void remove(String path) {
+        try (PreparedStatement delete = connection.prepareStatement(
+                "DELETE FROM files WHERE path = ? OR (path > ? AND path < ?)")) {
+            delete.setString(1, path);
+            delete.setString(2, path + File.separatorChar);
+            delete.setString(3, path + (char) (File.separatorChar + 1));
+            delete.executeUpdate();
+        } catch (SQLException e) {
+            System.err.printf("Error updating catalog for %s: %s%n", path, e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the files that could not be parsed, with their errors, in path order.
+     */
+    synchronized Map<String, String> failures() {
+        Map<String, String> failures = new LinkedHashMap<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet rows = statement.executeQuery("SELECT path, error FROM files WHERE error IS NOT NULL ORDER BY path")) {
+            while (rows.next())
+                failures.put(rows.getString(1), rows.getString(2));
+        } catch (SQLException e) {
+            System.err.printf("Error reading catalog: %s%n", e.getMessage());
+        }
+        return failures;
+    }
+
+    synchronized void clear() {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("DELETE FROM files");
+        } catch (SQLException e) {
+            System.err.printf("Error clearing catalog: %s%n", e.getMessage());
+        }
+    }
+
+    synchronized void commit() {
+        try {
+            connection.commit();
+        } catch (SQLException e) {
+            System.err.printf("Error committing catalog: %s%n", e.getMessage());
+        }
+    }
+
+    /**
+     * Discards all updates made since the last commit.
+     */
+    synchronized void rollback() {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            System.err.printf("Error rolling back catalog: %s%n", e.getMessage());
+        }
+    }
+
+    synchronized void close() {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            System.err.printf("Error closing catalog: %s%n", e.getMessage());
+        }
+    }
+
+    static String hash(File file) throws IOException {
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[64 * 1024];
+            for (int read; (read = in.read(buffer)) > 0; )
+                digest.update(buffer, 0, read);
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b: digest.digest())
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
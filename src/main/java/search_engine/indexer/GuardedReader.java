@@ -0,0 +1,88 @@
+package search_engine.indexer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the output of a background parse, giving up once a deadline passes
+ * and reporting parser failures as {@link ExtractionException}s.
+ *
+ * A read waiting for a parser that produces nothing is interrupted when the
+ * deadline passes. The parser thread itself cannot be stopped, only cut off
+ * from its output; parsing in forked processes is the way to really get rid
+ * of a runaway parser.
+ */
+class GuardedReader extends Reader {
+
+    private final Reader in;
+    private final long timeoutMillis;
+    private final ScheduledFuture<?> alarm;
+    private Thread reading = null;
+    private boolean expired = false;
+
+    GuardedReader(Reader in, long timeoutMillis, ScheduledExecutorService timer) {
+        this.in = in;
+        this.timeoutMillis = timeoutMillis;
+        this.alarm = timeoutMillis > 0 ? timer.schedule(this::expire, timeoutMillis, TimeUnit.MILLISECONDS) : null;
+    }
+
+    private synchronized void expire() {
+        expired = true;
+        if (reading != null)
+            reading.interrupt();
+    }
+
+    @Override
+    public int read(char[] buf, int off, int len) throws IOException {
+        synchronized (this) {
+            if (expired)
+                throw timedOut();
+            reading = Thread.currentThread();
+        }
+
+        try {
+            return in.read(buf, off, len);
+
+        } catch (InterruptedIOException e) {
+            if (isExpired())
+                throw timedOut();
+            throw e;
+
+        } catch (ExtractionException e) {
+            throw e;
+
+        } catch (IOException e) {
+            /* The parser reads the file itself, so whatever it fails with is down to the file */
+            Throwable cause = e.getCause();
+            if (cause instanceof Error || cause instanceof Exception && !(cause instanceof IOException))
+                throw new ExtractionException(String.valueOf(cause.getMessage()), cause);
+            throw new ExtractionException(String.valueOf(e.getMessage()), e);
+
+        } finally {
+            synchronized (this) {
+                reading = null;
+                if (expired)
+                    Thread.interrupted();
+            }
+        }
+    }
+
+    private synchronized boolean isExpired() {
+        return expired;
+    }
+
+    private ExtractionException timedOut() {
+        return new ExtractionException(String.format("parsing took over %d s", timeoutMillis / 1000), null);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (alarm != null)
+            alarm.cancel(false);
+        in.close();
+    }
+}
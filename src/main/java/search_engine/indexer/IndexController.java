@@ -9,46 +9,429 @@ import org.apache.lucene.document.*;
 import org.apache.lucene.document.Field.Store;
 import org.apache.lucene.index.*;
 import org.apache.lucene.search.*;
+import org.apache.lucene.store.AlreadyClosedException;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.BytesRef;
-import org.apache.tika.Tika;
-import org.apache.tika.langdetect.OptimaizeLangDetector;
-import org.apache.tika.language.detect.LanguageDetector;
-import org.apache.tika.language.detect.LanguageResult;
+import org.apache.lucene.util.IOUtils;
+import search_engine.metrics.Metrics;
+import search_engine.metrics.Timer;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PushbackReader;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitor;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToLongFunction;
 
 public class IndexController {
 
-    private Directory indexDir;
-    private IndexWriter writerForNotifications = null;
+    /**
+     * Version of the document layout written by this class; files indexed with
+     * a different version are treated as changed.
+     */
+    static final int INDEX_VERSION = 7;
+
+    private static final FieldType CONTENT_TYPE = contentType(false);
+    private static final FieldType STORED_CONTENT_TYPE = contentType(true);
+
+    static final int DEFAULT_BULK_RAM_BUFFER_MB = 256;
+
+    private static final String STAGING_SUFFIX = ".staging";
+
+    private Shard main;
+    /* Shards of the indexed directories looked up so far, the main one included */
+    private final Map<String, Shard> shardsByRoot = new ConcurrentHashMap<>();
+    private final Set<Shard> writing = ConcurrentHashMap.newKeySet();
+    private boolean sharding = false;
+    private boolean contentHashing = false;
+    private boolean storeContent = false;
+    private long maxContentChars = Integer.MAX_VALUE;
+    private final ContentExtractor extractor = new ContentExtractor();
+    private final Metrics metrics = new Metrics("Indexer");
+    private final LanguageDetectionService languageDetection = new LanguageDetectionService(metrics.timer("language"));
+    private final Set<String> roots = ConcurrentHashMap.newKeySet();
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private int commitMaxDocs = CommitScheduler.DEFAULT_MAX_DOCS;
+    private long commitMaxBytes = CommitScheduler.DEFAULT_MAX_BYTES;
+    private long commitMaxDelayMillis = CommitScheduler.DEFAULT_MAX_DELAY_MILLIS;
+    private long quietMillis = 500;
+    private int bulkRamBufferMb = DEFAULT_BULK_RAM_BUFFER_MB;
+    private long pollMillis = 0;
+    private int pollThreads = 2 * Runtime.getRuntime().availableProcessors();
+    private final Set<Path> hotDirs = new HashSet<>();
 
     public IndexController (Path indexDirPath) {
         try {
-            this.indexDir = FSDirectory.open(indexDirPath);
+            this.main = new Shard(indexDirPath);
 
         } catch (IOException e) {
             System.err.printf("Error opening the index directory: %s%n", e.getMessage());
             System.exit(1);
+        } catch (SQLException e) {
+            System.err.printf("Error opening the file catalog: %s%n", e.getMessage());
+            System.exit(1);
         }
+
+        metrics.gauge("writer.ram_bytes", () -> sumOverWriters(IndexWriter::ramBytesUsed));
+        metrics.gauge("merge.running", () -> sumOverWriters(writer ->
+                ((ConcurrentMergeScheduler) writer.getConfig().getMergeScheduler()).mergeThreadCount()));
+        metrics.register();
+    }
+
+    /**
+     * Returns where the shards of the index at the given path are kept.
+     */
+    public static Path shardsPath (Path indexPath) {
+        return indexPath.resolveSibling(indexPath.getFileName() + ".shards");
     }
 
-    private boolean writerForNotificationsAvailable () {
-        return writerForNotifications != null && writerForNotifications.isOpen();
+    /**
+     * Returns the directory of the index at the given path followed by those
+     * of all its shards; together they hold everything indexed.
+     */
+    public static List<Path> shardPaths (Path indexPath) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        Path shards = shardsPath(indexPath);
+        if (Files.isDirectory(shards))
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(shards)) {
+                for (Path entry: entries)
+                    if (Files.isDirectory(entry) && !entry.getFileName().toString().endsWith(STAGING_SUFFIX))
+                        paths.add(entry);
+            }
+        Collections.sort(paths);
+        paths.add(0, indexPath);
+        return paths;
+    }
+
+    static String shardName (String root) {
+        String name = root.replaceAll("[^\\p{Alnum}]+", "_").replaceAll("^_|_$", "");
+        return String.format("%s-%08x", name.substring(Math.max(0, name.length() - 100)), root.hashCode());
+    }
+
+    private long sumOverWriters (ToLongFunction<IndexWriter> stat) {
+        long sum = 0;
+        for (Shard shard: writing) {
+            CommitScheduler commits = shard.getCommits();
+            if (commits != null)
+                try {
+                    sum += stat.applyAsLong(commits.getWriter());
+                } catch (AlreadyClosedException e) {
+                    /* Closed since it was looked up */
+                }
+        }
+        return sum;
     }
 
-    private IndexWriter prepareWriter() {
-        return prepareWriter(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+    Metrics getMetrics () {
+        return metrics;
     }
 
-    private IndexWriter prepareWriter(IndexWriterConfig.OpenMode mode) {
+    /**
+     * Writes a line with all indexing metrics to standard error every given
+     * number of seconds; they are always available through JMX.
+     */
+    public void logMetricsEvery (long seconds) {
+        metrics.logEvery(seconds);
+    }
+
+    public void setWorkers (int workers) {
+        if (workers > 0)
+            this.workers = workers;
+    }
+
+    public int getWorkers () {
+        return workers;
+    }
+
+    public void setCommitMaxDocs (int docs) {
+        if (docs > 0)
+            this.commitMaxDocs = docs;
+    }
+
+    public void setCommitMaxBytes (long bytes) {
+        if (bytes > 0)
+            this.commitMaxBytes = bytes;
+    }
+
+    public void setCommitMaxDelayMillis (long millis) {
+        if (millis > 0)
+            this.commitMaxDelayMillis = millis;
+    }
+
+    public void setLanguageSampleChars (int chars) {
+        languageDetection.setSampleChars(chars);
+    }
+
+    public void setLanguageSampleChunks (int chunks) {
+        languageDetection.setSampleChunks(chunks);
+    }
+
+    /**
+     * Sets how many characters at the start of a file's text are read ahead
+     * for language detection.
+     */
+    public void setLanguageSampleBudget (int chars) {
+        languageDetection.setSampleBudget(chars);
+    }
+
+    /**
+     * Sets how long extracting the text of a single file may take before it
+     * is given up on; 0 means no limit.
+     */
+    public void setParseTimeoutMillis (long millis) {
+        extractor.setTimeoutMillis(millis);
+    }
+
+    /**
+     * Makes files parse in a pool of child JVMs, so a parser that hangs or
+     * runs out of memory only takes down its own process.
+     */
+    public void setForkedParsers (int parsers, int heapMb) {
+        extractor.setForkedParsers(parsers, heapMb);
+    }
+
+    /**
+     * Sets how many characters of each file's text are indexed at most; the
+     * rest is skipped, with a note on the console.
+     */
+    public void setMaxContentChars (long chars) {
+        if (chars > 0)
+            this.maxContentChars = Math.min(chars, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Sets the RAM buffer of the writer used by a rebuild, which is capped at
+     * a quarter of the heap.
+     */
+    public void setBulkRamBufferMb (int mb) {
+        if (mb > 0)
+            this.bulkRamBufferMb = mb;
+    }
+
+    /**
+     * When on, each directory added gets an index shard of its own rather than
+     * going into the main index, so it can be dropped, rebuilt and merged
+     * without touching the others. Directories already indexed stay where
+     * they are.
+     */
+    public void setSharding (boolean sharding) {
+        this.sharding = sharding;
+    }
+
+    /**
+     * Sets how long a path must go without file system events before watch
+     * mode acts on it.
+     */
+    public void setQuietMillis (long millis) {
+        if (millis >= 0)
+            this.quietMillis = millis;
+    }
+
+    long getQuietMillis () {
+        return quietMillis;
+    }
+
+    /**
+     * Makes watch mode find changes by scanning file metadata every given
+     * number of seconds instead of watching every directory; 0 means native
+     * watches only.
+     */
+    public void setPollSeconds (long seconds) {
+        if (seconds >= 0)
+            this.pollMillis = seconds * 1000;
+    }
+
+    long getPollMillis () {
+        return pollMillis;
+    }
+
+    public void setPollThreads (int threads) {
+        if (threads > 0)
+            this.pollThreads = threads;
+    }
+
+    int getPollThreads () {
+        return pollThreads;
+    }
+
+    /**
+     * Keeps native watches on a subtree that changes often while the rest is
+     * polled, so its changes show up within the quiet window rather than the
+     * poll interval.
+     */
+    public void addHotDirectory (File dir) {
+        try {
+            hotDirs.add(dir.getCanonicalFile().toPath());
+        } catch (IOException e) {
+            System.err.printf("Error resolving %s: %s%n", dir.getAbsolutePath(), e.getMessage());
+        }
+    }
+
+    Set<Path> getHotDirectories () {
+        return hotDirs;
+    }
+
+    /**
+     * When on, files whose size or modification time changed are hashed and
+     * only re-parsed if their content differs from what was indexed.
+     */
+    public void setContentHashing (boolean contentHashing) {
+        this.contentHashing = contentHashing;
+    }
+
+    /**
+     * When on, extracted content is stored in the index as well. Otherwise only
+     * postings with offsets are kept and the searcher highlights from the
+     * source files.
+     */
+    public void setStoreContent (boolean storeContent) {
+        this.storeContent = storeContent;
+    }
+
+    /**
+     * Indexes every directory a file is in, so a whole subtree can be matched
+     * by a single term, with no prefix expansion and no false matches on
+     * sibling directories sharing a name prefix.
+     */
+    static void addAncestors (Document doc, File canonical) {
+        for (File dir = canonical.getParentFile(); dir != null; dir = dir.getParentFile())
+            doc.add(new StringField("ancestor", dir.getPath(), Field.Store.NO));
+    }
+
+    /**
+     * Adds a value of a facet dimension, indexed for drill-down and kept in
+     * doc values for counting.
+     */
+    static void addFacet (Document doc, String dimension, String value) {
+        doc.add(new StringField(dimension, value, Field.Store.NO));
+        doc.add(new SortedDocValuesField(dimension, new BytesRef(value)));
+    }
+
+    /**
+     * Returns the indexed directory the file belongs to; the innermost one if
+     * they are nested.
+     */
+    private String rootOf (File canonical) {
+        for (File dir = canonical.getParentFile(); dir != null; dir = dir.getParentFile())
+            if (roots.contains(dir.getPath()))
+                return dir.getPath();
+        return canonical.getParent();
+    }
+
+    private static FieldType contentType (boolean stored) {
+        FieldType type = new FieldType(stored ? TextField.TYPE_STORED : TextField.TYPE_NOT_STORED);
+        type.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS);
+        type.freeze();
+        return type;
+    }
+
+    Shard getMainShard () {
+        return main;
+    }
+
+    /**
+     * Returns the shard an indexed directory is kept in, opening it if needed.
+     */
+    private Shard shardOf (String root) throws IOException {
+        Shard shard = shardsByRoot.get(root);
+        if (shard != null)
+            return shard;
+
+        Path path = shardsPath(main.path).resolve(shardName(root));
+        synchronized (shardsByRoot) {
+            shard = shardsByRoot.get(root);
+            if (shard == null) {
+                if (Files.isDirectory(path) || sharding && !Arrays.asList(indexedDirs(main.directory)).contains(new File(root))) {
+                    Files.createDirectories(path);
+                    try {
+                        shard = new Shard(path);
+                    } catch (SQLException e) {
+                        throw new IOException("Error opening the file catalog: " + e.getMessage(), e);
+                    }
+                } else
+                    shard = main;
+                shardsByRoot.put(root, shard);
+            }
+            return shard;
+        }
+    }
+
+    /**
+     * Returns the shard holding the given file or directory.
+     */
+    private Shard shardFor (File canonical) throws IOException {
+        for (File dir = canonical; dir != null; dir = dir.getParentFile())
+            if (roots.contains(dir.getPath()))
+                return shardOf(dir.getPath());
+        return main;
+    }
+
+    /**
+     * Returns the indexed directories inside the given one.
+     */
+    private Set<String> nestedRoots (String canonical) {
+        String prefix = canonical + File.separator;
+        Set<String> nested = new HashSet<>();
+        for (String root: roots)
+            if (root.startsWith(prefix))
+                nested.add(root);
+        return nested;
+    }
+
+    private void loadRoots () {
+        if (roots.isEmpty())
+            for (File dir: getIndexedDirs())
+                roots.add(dir.getPath());
+    }
+
+    /**
+     * Opens a writer on the shard, unless it has one already.
+     */
+    synchronized void startWriting (Shard shard) {
+        if (!shard.isWritable()) {
+            IndexWriter writer = prepareWriter(shard.directory, writerConfig(IndexWriterConfig.OpenMode.CREATE_OR_APPEND));
+            shard.startWriting(prepareCommitScheduler(writer, shard.catalog));
+            writing.add(shard);
+        }
+    }
+
+    synchronized void stopWriting (Shard shard) {
+        writing.remove(shard);
+        try {
+            shard.stopWriting();
+        } catch (IOException e) {
+            System.err.printf("Error closing writer: %s%n", e.getMessage());
+        }
+    }
+
+    private CommitScheduler prepareCommitScheduler (IndexWriter writer, FileCatalog catalog) {
+        CommitScheduler commits = new CommitScheduler(writer, commitMaxDocs, commitMaxBytes, commitMaxDelayMillis,
+                metrics.timer("commit"));
+        commits.addCommitListener(catalog::commit);
+        return commits;
+    }
+
+    private IndexWriterConfig writerConfig(IndexWriterConfig.OpenMode mode) {
 
         Analyzer english = new EnglishAnalyzer(), polish = new PolishAnalyzer();
         Map<String, Analyzer> analyzerMap = new HashMap<>();
@@ -59,9 +442,22 @@ public class IndexController {
 
         IndexWriterConfig iwc = new IndexWriterConfig(wrapper);
         iwc.setOpenMode(mode);
+        Timer merges = metrics.timer("merge");
+        ConcurrentMergeScheduler mergeScheduler = new ConcurrentMergeScheduler() {
+            @Override
+            protected void doMerge(IndexWriter writer, MergePolicy.OneMerge merge) throws IOException {
+                long start = System.nanoTime();
+                super.doMerge(writer, merge);
+                merges.recordSince(start);
+            }
+        };
+        iwc.setMergeScheduler(mergeScheduler);
+        return iwc;
+    }
 
+    private IndexWriter prepareWriter(Directory dir, IndexWriterConfig iwc) {
         try {
-            return new IndexWriter(indexDir, iwc);
+            return new IndexWriter(dir, iwc);
 
         } catch (IOException e) {
             System.err.printf("Error preparing the index writer: %s%n", e.getMessage());
@@ -71,60 +467,134 @@ public class IndexController {
     }
 
     public void index (File dir) {
-            index(new File[] {dir}, false);
-    }
+        if (!dir.isDirectory()) {
+            System.err.printf("Error: %s is not a directory", dir.getAbsolutePath());
+            return;
+        }
 
-    private void index (File[] dirs, boolean anew) {
-        try (IndexWriter writer = prepareWriter(anew
-                ?IndexWriterConfig.OpenMode.CREATE
-                :IndexWriterConfig.OpenMode.CREATE_OR_APPEND)) {
+        Shard shard = null;
+        try {
+            loadRoots();
+            shard = shardOf(dir.getCanonicalPath());
+            startWriting(shard);
+            indexDirectory(dir, shard);
+        } catch (IOException e) {
+            System.err.printf("Error indexing %s: %s%n", dir.getAbsolutePath(), e.getMessage());
+        } finally {
+            if (shard != null)
+                stopWriting(shard);
+        }
 
-            for (File dir: dirs)
-                try {
-                    indexDirectory(dir, writer);
-                } catch (IOException e) {
-                    System.err.printf("Error indexing %s: %s%n", dir.getAbsolutePath(), e.getMessage());
-                }
+        if (shard != null)
+            try {
+                String canonical = dir.getCanonicalPath(), enclosing = rootOf(new File(canonical));
+                if (roots.contains(enclosing) && shardOf(enclosing) != shard)
+                    dropCopies(canonical, shardOf(enclosing));
+            } catch (IOException e) {
+                System.err.printf("Error indexing %s: %s%n", dir.getAbsolutePath(), e.getMessage());
+            }
+    }
 
+    /**
+     * Removes the files of a newly indexed directory from the shard of the
+     * indexed directory enclosing it, which held them until now.
+     */
+    private void dropCopies (String canonical, Shard enclosing) {
+        startWriting(enclosing);
+        try {
+            enclosing.getCommits().change(0, w -> {
+                w.deleteDocuments(new Term("ancestor", canonical));
+                enclosing.catalog.remove(canonical);
+            });
         } catch (IOException e) {
-            System.err.printf("Error closing index: %s%n", e.getMessage());
+            System.err.printf("Error moving %s out of its enclosing directory: %s%n", canonical, e.getMessage());
+        } finally {
+            stopWriting(enclosing);
         }
     }
 
-    private void indexDocument (File file, IndexWriter writer) {
+    void indexDocument (File file, Shard shard) {
+        CommitScheduler commits = shard.getCommits();
+        FileCatalog catalog = shard.catalog;
         try {
             if (file.isFile()) {
 
                 try {
+                    long start = System.nanoTime();
                     String canonical = file.getCanonicalPath();
-                    System.out.printf("Indexing %s... ", canonical);
+                    long size = file.length(), modified = file.lastModified();
+
+                    String hash = contentHashing ? FileCatalog.hash(file) : null;
+                    if (hash != null) {
+                        FileCatalog.Entry entry = catalog.get(canonical);
+                        if (entry != null && entry.version == INDEX_VERSION && hash.equals(entry.hash)) {
+                            /* Only touched: the highlighter checks the file against this time */
+                            commits.change(0, w -> {
+                                w.updateNumericDocValue(new Term("path", canonical), "modified", modified);
+                                catalog.record(canonical, size, modified, hash, INDEX_VERSION);
+                            });
+                            metrics.counter("files.unchanged").increment();
+                            return;
+                        }
+                    }
 
-                    Tika tika = new Tika();
                     Document doc = new Document();
                     doc.add(new StringField("path", canonical, Field.Store.YES));
+                    doc.add(new SortedDocValuesField("path", new BytesRef(canonical)));
+                    addAncestors(doc, file.getCanonicalFile());
+                    addFacet(doc, "root", rootOf(file.getCanonicalFile()));
+                    addFacet(doc, "type", extractor.detect(file));
+                    addFacet(doc, "year", String.valueOf(
+                            Instant.ofEpochMilli(modified).atZone(ZoneId.systemDefault()).getYear()));
+                    doc.add(new NumericDocValuesField("modified", modified));
 
-                    String body;
-                    if (file.length() > 0)
-                        body = tika.parseToString(file);
-                    else
-                        body = "";
-
-                    String content = file.getName().concat("\n").concat(body);
-
-                    LanguageDetector detector = new OptimaizeLangDetector().loadModels();
-                    LanguageResult result = detector.detect(content);
-
-                    if (!result.isUnknown() && result.isLanguage("pl")) {
-                        doc.add(new TextField("contentPolish", content, Field.Store.YES));
-                    } else {
-                        doc.add(new TextField("contentEnglish", content, Field.Store.YES));
+                    BoundedReader text = extractor.open(file, maxContentChars);
+                    try {
+                        if (storeContent) {
+                            String content = ContentExtractor.readAll(text);
+                            String language = languageDetection.detect(content);
+                            doc.add(new Field(contentField(language), content, STORED_CONTENT_TYPE));
+                            addFacet(doc, "language", language != null ? language : "unknown");
+                        } else {
+                            int budget = languageDetection.getSampleBudget();
+                            PushbackReader content = new PushbackReader(text, budget);
+                            String language = languageDetection.detect(content, budget);
+                            doc.add(new Field(contentField(language), content, CONTENT_TYPE));
+                            addFacet(doc, "language", language != null ? language : "unknown");
+                        }
+                        /* Streamed text is parsed while the document is analyzed; waits for the parser are not analysis */
+                        long readBefore = text.getReadNanos(), indexStart = System.nanoTime();
+                        /*
+                         * Parsing happens inside updateDocument, so it runs outside the commit lock: a slow
+                         * parser must not hold up commits. A catalog row landing a commit after its document
+                         * only means the file is indexed again after a crash.
+                         */
+                        commits.getWriter().updateDocument(new Term("path", canonical), doc);
+                        metrics.timer("index").record(System.nanoTime() - indexStart - (text.getReadNanos() - readBefore));
+                        commits.change(size, w -> catalog.record(canonical, size, modified, hash, INDEX_VERSION));
+                    } catch (ExtractionException e) {
+                        metrics.counter("files.failed").increment();
+                        System.err.printf("Error parsing %s, skipped until it changes: %s%n", canonical, e.getMessage());
+                        commits.change(0, w -> {
+                            w.deleteDocuments(new Term("path", canonical));
+                            catalog.recordFailure(canonical, size, modified, INDEX_VERSION, e.getMessage());
+                        });
+                        return;
+                    } finally {
+                        text.close();
+                        metrics.timer("parse").record(text.getReadNanos());
                     }
-                    writer.updateDocument(new Term("path", canonical), doc);
-                    writer.commit();
 
-                    System.out.println("Finished!");
+                    metrics.timer("file").recordSince(start);
+                    metrics.counter("files.indexed").increment();
+                    metrics.counter("bytes.indexed").add(size);
+                    if (text.isTruncated())
+                        System.out.printf("Indexing %s... Finished, first %d characters only%n", canonical, maxContentChars);
+                    else
+                        System.out.printf("Indexing %s... Finished!%n", canonical);
 
                 } catch (Exception e) {
+                    metrics.counter("files.errors").increment();
                     System.err.printf("Error reading from file %s: %s%n", file.getAbsolutePath(), e.getMessage());
                 }
             }
@@ -133,51 +603,183 @@ public class IndexController {
         }
     }
 
+    private static String contentField (String language) {
+        return "pl".equals(language) ? "contentPolish" : "contentEnglish";
+    }
+
     void indexDocument (Path file) {
-        if (writerForNotificationsAvailable())
-            indexDocument(file.toFile(), writerForNotifications);
-        else
-            System.err.println("No writer available...");
+        try {
+            Shard shard = shardFor(file.toFile().getCanonicalFile());
+            if (shard.isWritable())
+                indexDocument(file.toFile(), shard);
+            else
+                System.err.println("No writer available...");
+        } catch (IOException e) {
+            System.err.printf("Error reading from file %s: %s%n", file.toAbsolutePath(), e.getMessage());
+        }
     }
 
     public void clearIndex () {
-        index(new File[] {}, false);
+        startWriting(main);
+        stopWriting(main);
     }
 
-    private void indexDirectory(File dir, IndexWriter writer) throws IOException {
+    private void indexDirectory(File dir, Shard shard) throws IOException {
 
         if (dir.isDirectory()) {
             String canonical = dir.getCanonicalPath();
-            System.out.printf("Indexing %s... ", canonical);
+            System.out.printf("Indexing %s...%n", canonical);
 
-            writerForNotifications = writer;
-            Files.walkFileTree(dir.toPath(), new IndexingFileVisitor(this));
+            roots.add(canonical);
+            synchronize(canonical, shard, Files::walkFileTree);
 
             Document indexedDir = new Document();
             indexedDir.add(new StringField("dir", canonical, Store.YES));
             indexedDir.add(new SortedDocValuesField("dir", new BytesRef(canonical)));
-            writer.updateDocument(new Term("dir", new BytesRef(canonical)), indexedDir);
+            shard.getCommits().change(0, w -> w.updateDocument(new Term("dir", new BytesRef(canonical)), indexedDir));
 
-            System.out.println("Finished!");
+            System.out.printf("Indexing %s... Finished!%n", canonical);
 
         } else
             System.err.printf("Error: %s is not a directory", dir.getAbsolutePath());
     }
 
-    private void deindex (File dir, IndexWriter writer) {
+    interface Walk {
+        void walk(Path root, FileVisitor<Path> visitor) throws IOException;
+    }
 
-        String canonical;
-        try {
-            canonical = dir.getCanonicalPath();
-        } catch (IOException e) {
-            canonical = dir.getAbsolutePath();
-            System.err.printf("Could not generate canonical path, using absolute path instead: %s%n", canonical);
+    /**
+     * Brings the index in line with the directory tree: walks it, indexes new
+     * and modified files and removes vanished ones, using the file catalog to
+     * tell which is which.
+     *
+     * Indexed directories nested in this one are left out of the walk, as
+     * their files belong to them and may live in another shard. Copies of
+     * those files left in this shard from before are removed.
+     */
+    private void synchronize(String canonical, Shard shard, Walk walk) throws IOException {
+        FileCatalog catalog = shard.catalog;
+        Map<String, FileCatalog.Entry> catalogued = catalog.snapshot(canonical);
+        Set<String> nested = nestedRoots(canonical);
+        IndexingFileVisitor visitor;
+        long start = System.nanoTime();
+        try (IndexingPipeline pipeline = new IndexingPipeline(this, shard, workers)) {
+            metrics.gauge("queue", pipeline::queueDepth);
+            visitor = new IndexingFileVisitor(pipeline, catalog, catalogued, nested);
+            long walkStart = System.nanoTime();
+            walk.walk(Paths.get(canonical), visitor);
+            metrics.timer("walk").recordSince(walkStart);
+        } finally {
+            metrics.gauge("queue", () -> 0);
         }
+        for (String root: nested)
+            if (shardFor(new File(root)).catalog == catalog)
+                IndexingFileVisitor.removeUnder(catalogued, root);
+        /* The walk plus draining the pipeline of what it found */
+        metrics.timer("sync").recordSince(start);
+        metrics.counter("files.unchanged").add(visitor.getUnchanged());
+        System.out.printf("Skipped %d unchanged files%n", visitor.getUnchanged());
+
+        for (String vanished: catalogued.keySet()) {
+            System.out.printf("Removing vanished %s%n", vanished);
+            shard.getCommits().change(0, w -> {
+                w.deleteDocuments(new Term("path", vanished));
+                catalog.remove(vanished);
+            });
+        }
+    }
+
+    /**
+     * Catches up with changes made to an indexed directory while it was not
+     * watched, walking it with the given walk (which may register watches on
+     * the way).
+     */
+    void reconcile(File dir, Walk walk) throws IOException {
+        File canonical = dir.getCanonicalFile();
+        Shard shard = shardFor(canonical);
+        if (shard.isWritable())
+            synchronize(canonical.getPath(), shard, walk);
+        else
+            System.err.println("No writer available...");
+    }
+
+    /**
+     * Catches up with changes to the files directly in each of the given
+     * directories, leaving their subdirectories alone.
+     */
+    void reconcileFiles (List<Path> dirs) {
+        Map<Shard, List<String>> dirsByShard = new LinkedHashMap<>();
+        for (Path dir: dirs)
+            try {
+                File canonical = dir.toFile().getCanonicalFile();
+                dirsByShard.computeIfAbsent(shardFor(canonical), shard -> new ArrayList<>()).add(canonical.getPath());
+            } catch (IOException e) {
+                System.err.printf("Error reading %s: %s%n", dir.toAbsolutePath(), e.getMessage());
+            }
 
+        for (Map.Entry<Shard, List<String>> group: dirsByShard.entrySet()) {
+            Shard shard = group.getKey();
+            if (!shard.isWritable()) {
+                System.err.println("No writer available...");
+                continue;
+            }
+
+            int unchanged = 0;
+            try (IndexingPipeline pipeline = new IndexingPipeline(this, shard, workers)) {
+                for (String dir: group.getValue()) {
+                    Map<String, FileCatalog.Entry> catalogued = shard.catalog.children(dir);
+                    IndexingFileVisitor visitor = new IndexingFileVisitor(pipeline, shard.catalog, catalogued);
+                    try {
+                        walkFiles(Paths.get(dir), visitor);
+                    } catch (IOException e) {
+                        System.err.printf("Error reading %s: %s%n", dir, e.getMessage());
+                        continue;
+                    }
+                    unchanged += visitor.getUnchanged();
+
+                    for (String vanished: catalogued.keySet()) {
+                        System.out.printf("Removing vanished %s%n", vanished);
+                        shard.getCommits().change(0, w -> {
+                            w.deleteDocuments(new Term("path", vanished));
+                            shard.catalog.remove(vanished);
+                        });
+                    }
+                }
+            } catch (IOException e) {
+                System.err.printf("Error updating index: %s%n", e.getMessage());
+            }
+            metrics.counter("files.unchanged").add(unchanged);
+        }
+    }
+
+    /**
+     * Visits the files directly in a directory, the way a walk of depth one
+     * would, but without reporting its subdirectories.
+     */
+    private static void walkFiles (Path dir, FileVisitor<Path> visitor) throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry: entries) {
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    visitor.visitFileFailed(entry, e);
+                    continue;
+                }
+                if (!attrs.isDirectory())
+                    visitor.visitFile(entry, attrs);
+            }
+        }
+    }
+
+    private void deindex (String canonical, Shard shard) {
         try {
             System.out.printf("De-indexing %s... ", canonical);
-            writer.deleteDocuments(new Term("dir", canonical));
-            writer.deleteDocuments(new PrefixQuery(new Term("path", canonical)));
+            shard.getCommits().change(0, w -> {
+                w.deleteDocuments(new Term("dir", canonical));
+                w.deleteDocuments(new Term("path", canonical), new Term("ancestor", canonical));
+                shard.catalog.remove(canonical);
+            });
             System.out.println("Finished!");
 
         } catch (IOException e) {
@@ -185,18 +787,54 @@ public class IndexController {
         }
     }
 
+    /**
+     * Removes an indexed directory that has a shard of its own by deleting
+     * the shard, with no need to look for its documents.
+     */
+    private void drop (String root, Shard shard) {
+        System.out.printf("De-indexing %s... ", root);
+        synchronized (shardsByRoot) {
+            writing.remove(shard);
+            shardsByRoot.remove(root);
+            roots.remove(root);
+        }
+        try {
+            shard.close();
+            IOUtils.rm(shard.path, Shard.catalogPath(shard.path));
+            System.out.println("Finished!");
+        } catch (IOException e) {
+            System.err.printf("Error de-indexing %s: %s%n", root, e.getMessage());
+        }
+    }
+
     public void deindex (File dir) {
 
-        if (!writerForNotificationsAvailable()) {
+        String canonical;
+        try {
+            canonical = dir.getCanonicalPath();
+        } catch (IOException e) {
+            canonical = dir.getAbsolutePath();
+            System.err.printf("Could not generate canonical path, using absolute path instead: %s%n", canonical);
+        }
 
-            try (IndexWriter writer = prepareWriter()) {
-                deindex(dir, writer);
-            } catch (IOException e) {
-                System.err.printf("Error closing writer: %s%n", e.getMessage());
-            }
-        } else
-            deindex(dir, writerForNotifications);
+        Shard shard;
+        try {
+            loadRoots();
+            shard = shardFor(new File(canonical));
+        } catch (IOException e) {
+            System.err.printf("Error de-indexing %s: %s%n", canonical, e.getMessage());
+            return;
+        }
 
+        if (shard != main && roots.contains(canonical))
+            drop(canonical, shard);
+        else if (shard.isWritable())
+            deindex(canonical, shard);
+        else {
+            startWriting(shard);
+            deindex(canonical, shard);
+            stopWriting(shard);
+        }
     }
 
     public void listIndexedDirs () {
@@ -204,9 +842,56 @@ public class IndexController {
             System.out.println(dir);
     }
 
+    /**
+     * Lists the files that failed to parse and will not be retried until they change.
+     */
+    public void listFailedFiles () {
+        Set<Shard> shards = new LinkedHashSet<>();
+        shards.add(main);
+        try {
+            for (File dir: getIndexedDirs())
+                shards.add(shardOf(dir.getPath()));
+        } catch (IOException e) {
+            System.err.printf("Error reading index: %s%n", e.getMessage());
+        }
+
+        for (Shard shard: shards)
+            for (Map.Entry<String, String> failure: shard.catalog.failures().entrySet())
+                System.out.printf("%s: %s%n", failure.getKey(), failure.getValue());
+    }
+
+    /**
+     * Returns the indexed directories, whether in the main index or in shards
+     * of their own.
+     */
     public File[] getIndexedDirs () {
+        List<File> dirs = new ArrayList<>();
+        try {
+            for (Path path: shardPaths(main.path))
+                if (path.equals(main.path))
+                    dirs.addAll(Arrays.asList(indexedDirs(main.directory)));
+                else
+                    try (Directory shard = FSDirectory.open(path)) {
+                        dirs.addAll(Arrays.asList(indexedDirs(shard)));
+                    }
+        } catch (IOException e) {
+            System.err.printf("Error reading index: %s%n", e.getMessage());
+            System.exit(1);
+        }
+        return dirs.toArray(new File[0]);
+    }
+
+    private static File[] indexedDirs (Directory directory) {
 
-        try (IndexReader reader = DirectoryReader.open(indexDir)) {
+        try {
+            if (!DirectoryReader.indexExists(directory))
+                return new File[0];
+        } catch (IOException e) {
+            System.err.printf("Error reading index: %s%n", e.getMessage());
+            System.exit(1);
+        }
+
+        try (IndexReader reader = DirectoryReader.open(directory)) {
             try {
                 IndexSearcher searcher = new IndexSearcher(reader);
                 ScoreDoc[] docs = searcher.search(new DocValuesFieldExistsQuery("dir"), Integer.MAX_VALUE).scoreDocs;
@@ -228,21 +913,123 @@ public class IndexController {
         return null;
     }
 
+    /**
+     * Re-parses all indexed directories, one shard at a time, into a staging
+     * index next to the shard and then replaces the shard's contents with it
+     * in one commit, so searchers keep seeing the old index until the new one
+     * is complete.
+     *
+     * The staging writer is set up for bulk loading: a large RAM buffer, no
+     * commits until everything is indexed and a final merge down to a single
+     * segment. The catalog is rebuilt in the same transaction and committed
+     * together with the swap; if the rebuild fails, the shard and its catalog
+     * are left as they were.
+     *
+     * addIndexes copies the staging segments rather than moving them, so at
+     * its peak a shard takes about three times its size on disk: the old
+     * index, the staging index and the copy.
+     */
     public void rebuildIndex () {
-            index(getIndexedDirs(), true);
+        loadRoots();
+        Map<Shard, List<File>> dirsByShard = new LinkedHashMap<>();
+        for (File dir: getIndexedDirs())
+            try {
+                dirsByShard.computeIfAbsent(shardOf(dir.getPath()), shard -> new ArrayList<>()).add(dir);
+            } catch (IOException e) {
+                System.err.printf("Error rebuilding %s: %s%n", dir, e.getMessage());
+            }
+
+        for (Map.Entry<Shard, List<File>> shard: dirsByShard.entrySet())
+            rebuild(shard.getKey(), shard.getValue());
     }
 
-    public void watch () {
-        try (IndexWriter writer = prepareWriter()) {
-            writerForNotifications = writer;
+    private void rebuild (Shard shard, List<File> dirs) {
+        Path stagingPath = shard.path.resolveSibling(shard.path.getFileName() + STAGING_SUFFIX);
+        /* Taken first, so a running watcher is reported before hours of parsing rather than after */
+        IndexWriter live = prepareWriter(shard.directory, writerConfig(IndexWriterConfig.OpenMode.CREATE_OR_APPEND));
+        try {
+            IOUtils.rm(stagingPath);
+            try (Directory staging = FSDirectory.open(stagingPath)) {
+                buildStaging(dirs, new Shard(stagingPath, staging, shard.catalog));
+
+                System.out.println("Swapping in the rebuilt index...");
+                try (CommitScheduler commits = prepareCommitScheduler(live, shard.catalog)) {
+                    commits.change(0, w -> {
+                        w.deleteAll();
+                        w.addIndexes(staging);
+                    });
+                }
+                System.out.println("Swapping in the rebuilt index... Finished!");
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.printf("Error rebuilding index, keeping the current one: %s%n", e.getMessage());
+            shard.catalog.rollback();
             try {
-                IndexedDirectoriesMonitor monitor = new IndexedDirectoriesMonitor(getIndexedDirs());
-                monitor.watch(this);
+                live.rollback();
+            } catch (IOException ex) {
+                System.err.printf("Error rolling back index: %s%n", ex.getMessage());
+            }
+        } finally {
+            try {
+                live.close();
+                IOUtils.rm(stagingPath);
             } catch (IOException e) {
-                System.err.printf("Error creating watch service: %s%n", e.getMessage());
+                System.err.printf("Error cleaning up after rebuild: %s%n", e.getMessage());
+            }
+        }
+    }
+
+    private void buildStaging (List<File> dirs, Shard staging) throws IOException {
+        IndexWriterConfig iwc = writerConfig(IndexWriterConfig.OpenMode.CREATE);
+        iwc.setRAMBufferSizeMB(Math.min(bulkRamBufferMb, Runtime.getRuntime().maxMemory() / 4 / 1024 / 1024));
+        iwc.setUseCompoundFile(false);
+
+        try (IndexWriter writer = prepareWriter(staging.directory, iwc);
+             CommitScheduler commits = new CommitScheduler(writer, Integer.MAX_VALUE, Long.MAX_VALUE,
+                     Long.MAX_VALUE, metrics.timer("commit"))) {
+            staging.startWriting(commits);
+            writing.add(staging);
+
+            commits.change(0, w -> staging.catalog.clear());
+            for (File dir: dirs)
+                try {
+                    indexDirectory(dir, staging);
+                } catch (IOException e) {
+                    System.err.printf("Error indexing %s: %s%n", dir.getAbsolutePath(), e.getMessage());
+                }
+
+            System.out.println("Merging the rebuilt index...");
+            long start = System.nanoTime();
+            writer.forceMerge(1);
+            writer.commit();
+            System.out.printf("Merging the rebuilt index... Finished in %.1f s%n", (System.nanoTime() - start) / 1e9);
+        } finally {
+            writing.remove(staging);
+        }
+    }
+
+    public void watch () {
+        try {
+            File[] dirs = getIndexedDirs();
+            for (File dir: dirs) {
+                roots.add(dir.getPath());
+                startWriting(shardOf(dir.getPath()));
             }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                for (Shard shard: writing) {
+                    CommitScheduler commits = shard.getCommits();
+                    if (commits != null)
+                        commits.commit();
+                }
+            }));
+
+            IndexedDirectoriesMonitor monitor = new IndexedDirectoriesMonitor(dirs, this);
+            monitor.watch();
         } catch (IOException e) {
-            System.err.printf("Error closing writer: %s%n", e.getMessage());
+            System.err.printf("Error creating watch service: %s%n", e.getMessage());
+        } finally {
+            for (Shard shard: writing)
+                stopWriting(shard);
         }
     }
 }
@@ -6,14 +6,29 @@ import static java.nio.file.LinkOption.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import search_engine.metrics.Metrics;
 
 class IndexedDirectoriesMonitor {
 
     private final WatchService watcher;
     private final Map<WatchKey, Path> keys;
 
+    /* Paths with unhandled events and directories to rescan, ordered by their last event time */
+    private final LinkedHashMap<Path, Long> pending = new LinkedHashMap<>();
+    private final LinkedHashMap<Path, Long> rescans = new LinkedHashMap<>();
+
     private boolean notifyIndex = false;
     private IndexController indexController;
+    private final LongAdder events;
+    private final LongAdder overflows;
+
+    /* Set when the indexed trees are polled rather than watched */
+    private final PollingScanner scanner;
+    private final List<Path> polled = new ArrayList<>();
+    private final long pollMillis;
 
     @SuppressWarnings("unchecked")
     private <T> WatchEvent<T> cast(WatchEvent<?> event) {
@@ -29,7 +44,17 @@ class IndexedDirectoriesMonitor {
         Files.walkFileTree(dir, new ScanningFileVisitor(this, notifyIndex));
     }
 
-    IndexedDirectoriesMonitor(File[] dirs) throws IOException {
+    private void registerAll(Path dir, FileVisitor<Path> files) throws IOException {
+        Files.walkFileTree(dir, new ScanningFileVisitor(this, files));
+    }
+
+    /**
+     * Registers watches on the given directories and, in the same walk, lets
+     * the index controller catch up with changes made since it last ran. When
+     * polling, only the hot subtrees are watched and the rest of each tree
+     * gets a snapshot for the poller to compare against.
+     */
+    IndexedDirectoriesMonitor(File[] dirs, IndexController indexController) throws IOException {
 
         if (dirs.length == 0) {
             System.err.println("No indexed directories!");
@@ -38,11 +63,50 @@ class IndexedDirectoriesMonitor {
 
         this.watcher = FileSystems.getDefault().newWatchService();
         this.keys = new HashMap<>();
+        this.indexController = indexController;
+        indexController.getMetrics().gauge("events.pending", () -> pending.size() + rescans.size());
+        this.events = indexController.getMetrics().counter("events");
+        this.overflows = indexController.getMetrics().counter("events.overflow");
+        this.pollMillis = indexController.getPollMillis();
+
+        if (pollMillis == 0) {
+            this.scanner = null;
+            for (File dir: dirs) {
+                System.out.printf("Scanning %s ...%n", dir);
+                try {
+                    indexController.reconcile(dir, this::registerAll);
+                } catch (IOException e) {
+                    System.err.printf("Error: %s%n", e.getMessage());
+                }
+                System.out.println("Ready!");
+            }
+            return;
+        }
+
+        Set<Path> hot = indexController.getHotDirectories();
+        this.scanner = new PollingScanner(indexController.getPollThreads(), hot);
+        indexController.getMetrics().gauge("poll.directories", scanner::getDirectories);
+
+        /* Watch the hot subtrees first, so nothing changed in them while the rest is scanned goes unseen */
+        for (Path dir: hot) {
+            if (!isUnder(dir, dirs)) {
+                System.err.printf("%s is not in an indexed directory, not watching it%n", dir);
+                continue;
+            }
+            try {
+                registerAll(dir);
+            } catch (IOException e) {
+                System.err.printf("Error watching %s: %s%n", dir, e.getMessage());
+            }
+        }
 
         for (File dir: dirs) {
             System.out.printf("Scanning %s ...%n", dir);
+            Path root = dir.getCanonicalFile().toPath();
+            polled.add(root);
             try {
-                registerAll(dir.toPath());
+                scanner.scan(root);
+                indexController.reconcile(dir, Files::walkFileTree);
             } catch (IOException e) {
                 System.err.printf("Error: %s%n", e.getMessage());
             }
@@ -50,65 +114,189 @@ class IndexedDirectoriesMonitor {
         }
     }
 
+    private static boolean isUnder(Path dir, File[] roots) throws IOException {
+        for (File root: roots)
+            if (dir.startsWith(root.getCanonicalFile().toPath()))
+                return true;
+        return false;
+    }
+
+    /**
+     * Called for the files found in a directory created or moved in while
+     * watching. They are queued like files with events of their own, so a
+     * directory still being filled, e.g. by an unzip, is indexed once it is
+     * quiet and not on the watch thread.
+     */
     void notifyIndex(Path file) {
-        if (notifyIndex)
-            indexController.indexDocument(file);
+        if (notifyIndex) {
+            pending.remove(file);
+            pending.put(file, System.currentTimeMillis());
+        }
     }
 
-    void watch(IndexController indexController) {
+    /**
+     * Events are not acted upon straight away: they are collected per path and
+     * only handled once the path has been quiet for the quiet window, so a file
+     * written in many chunks is indexed once. An OVERFLOW schedules a rescan of
+     * the directory whose events were lost.
+     *
+     * When polling, the poll interval plays the part of the quiet window for
+     * the polled trees: a pass only sees where a burst of writes ended up.
+     */
+    void watch() {
         this.notifyIndex = true;
-        this.indexController = indexController;
+        long quietMillis = indexController.getQuietMillis();
+        long nextPoll = System.currentTimeMillis() + pollMillis;
 
         for (;;) {
             WatchKey key;
             try {
-                key = watcher.take();
+                boolean idle = pending.isEmpty() && rescans.isEmpty();
+                if (idle && scanner == null)
+                    key = watcher.take();
+                else {
+                    long wait = idle ? Long.MAX_VALUE : quietMillis;
+                    if (scanner != null)
+                        wait = Math.min(wait, Math.max(0, nextPoll - System.currentTimeMillis()));
+                    key = watcher.poll(wait, TimeUnit.MILLISECONDS);
+                }
             } catch (InterruptedException x) {
+                if (scanner != null)
+                    scanner.close();
                 return;
             }
 
-            Path dir = keys.get(key);
-            if (dir == null) {
-                System.err.println("WatchKey not recognized");
-                continue;
-            }
-
-            for (WatchEvent<?> event : key.pollEvents()) {
-                WatchEvent.Kind<?> kind = event.kind();
-
-                if (kind == OVERFLOW) {
+            if (key != null) {
+                Path dir = keys.get(key);
+                if (dir == null) {
+                    System.err.println("WatchKey not recognized");
                     continue;
                 }
 
-                WatchEvent<Path> ev = cast(event);
-                Path name = ev.context();
-                Path child = dir.resolve(name);
+                long now = System.currentTimeMillis();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    WatchEvent.Kind<?> kind = event.kind();
+                    events.increment();
+
+                    if (kind == OVERFLOW) {
+                        overflows.increment();
+                        rescans.remove(dir);
+                        rescans.put(dir, now);
+                        continue;
+                    }
+
+                    WatchEvent<Path> ev = cast(event);
+                    Path name = ev.context();
+                    Path child = dir.resolve(name);
 
-                if (kind == ENTRY_CREATE) {
-                    try {
-                        if (Files.isDirectory(child, NOFOLLOW_LINKS)) {
-                            registerAll(child);
+                    if (kind == ENTRY_CREATE) {
+                        try {
+                            if (Files.isDirectory(child, NOFOLLOW_LINKS)) {
+                                registerAll(child);
+                                continue;
+                            }
+                        } catch (IOException e) {
+                            System.out.printf("Error reading %s: %s%n", child.toAbsolutePath(), e.getMessage());
                         }
-                    } catch (IOException e) {
-                        System.out.printf("Error reading %s: %s%n", child.toAbsolutePath(), e.getMessage());
                     }
-                } else if (kind == ENTRY_DELETE) {
-                    indexController.deindex(child.toAbsolutePath().toFile());
-                } else if (kind == ENTRY_MODIFY) {
-                    if (Files.isRegularFile(child, NOFOLLOW_LINKS)) {
-                        indexController.indexDocument(child);
+                    pending.remove(child);
+                    pending.put(child, now);
+                }
+
+                boolean valid = key.reset();
+                if (!valid) {
+                    keys.remove(key);
+
+                    if (keys.isEmpty() && scanner == null) {
+                        break;
                     }
                 }
             }
 
-            boolean valid = key.reset();
-            if (!valid) {
-                keys.remove(key);
+            flush(System.currentTimeMillis() - quietMillis);
 
-                if (keys.isEmpty()) {
-                    break;
-                }
+            if (scanner != null && System.currentTimeMillis() >= nextPoll) {
+                poll();
+                nextPoll = System.currentTimeMillis() + pollMillis;
+            }
+        }
+    }
+
+    /**
+     * Scans the polled trees and reconciles the directories whose files
+     * changed since the last pass.
+     */
+    private void poll() {
+        Metrics metrics = indexController.getMetrics();
+        long start = System.nanoTime();
+        List<Path> changed = new ArrayList<>();
+        for (Path root: polled) {
+            PollingScanner.Changes changes;
+            try {
+                changes = scanner.scan(root);
+            } catch (IOException e) {
+                /* Kept, in case it comes back */
+                System.err.printf("Error polling %s: %s%n", root, e.getMessage());
+                continue;
+            }
+            for (Path dir: changes.vanished)
+                indexController.deindex(dir.toFile());
+            changed.addAll(changes.changed);
+        }
+        metrics.timer("poll").recordSince(start);
+
+        if (!changed.isEmpty()) {
+            metrics.counter("poll.changed").add(changed.size());
+            indexController.reconcileFiles(changed);
+        }
+    }
+
+    /**
+     * Tells whether a directory lies under one rescanned just now or waiting
+     * to be rescanned.
+     */
+    private boolean coveredBy(Path dir, Set<Path> rescanned) {
+        for (Path parent = dir.getParent(); parent != null; parent = parent.getParent())
+            if (rescanned.contains(parent) || rescans.containsKey(parent))
+                return true;
+        return false;
+    }
+
+    /**
+     * Handles the paths and rescans whose last event is older than {@code quietSince}.
+     */
+    private void flush(long quietSince) {
+        Set<Path> rescanned = new HashSet<>();
+        for (Iterator<Map.Entry<Path, Long>> it = rescans.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Path, Long> rescan = it.next();
+            if (rescan.getValue() > quietSince)
+                break;
+            it.remove();
+
+            /* An overflow is signalled on every watched directory; one rescan of the outermost covers the rest */
+            Path dir = rescan.getKey();
+            if (coveredBy(dir, rescanned))
+                continue;
+            rescanned.add(dir);
+            System.out.printf("Events lost, rescanning %s...%n", dir);
+            try {
+                indexController.reconcile(dir.toFile(), this::registerAll);
+            } catch (IOException e) {
+                System.err.printf("Error rescanning %s: %s%n", dir.toAbsolutePath(), e.getMessage());
             }
         }
+
+        for (Iterator<Map.Entry<Path, Long>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Path, Long> event = it.next();
+            if (event.getValue() > quietSince)
+                break;
+            it.remove();
+
+            Path child = event.getKey();
+            if (Files.isRegularFile(child, NOFOLLOW_LINKS))
+                indexController.indexDocument(child);
+            else if (!Files.exists(child, NOFOLLOW_LINKS))
+                indexController.deindex(child.toAbsolutePath().toFile());
+        }
     }
 }
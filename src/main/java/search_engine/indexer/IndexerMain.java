@@ -3,20 +3,105 @@ package search_engine.indexer;
 import java.io.File;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 
 public class IndexerMain {
     private static Path indexPath = Paths.get(System.getProperty("user.home"),".index");
 
     public static void main(String[] args) {
         String usage = "java " + IndexerMain.class.getName()
-                + " [--purge | --add <dir> | --rm <dir> | --reindex | --list]\n";
+                + " [--workers <n>] [--commit-docs <n>] [--commit-mb <n>] [--commit-secs <n>]"
+                + " [--lang-sample <chars>] [--lang-chunks <n>] [--lang-budget <chars>] [--max-chars <n>]"
+                + " [--parse-timeout <secs>] [--fork <n>] [--fork-heap-mb <n>] [--metrics <secs>] [--hash] [--store-content] [--quiet-ms <n>] [--bulk-ram-mb <n>] [--sharded]"
+                + " [--poll <secs>] [--poll-threads <n>] [--hot <dir>]..."
+                + " [--purge | --add <dir> | --rm <dir> | --reindex | --list | --failed]\n"
+                + "--reindex needs free disk space of about twice the index size: the old index stays live"
+                + " while a staging copy is built, and the staging copy is then copied in rather than moved.\n";
 
         IndexController indexController = new IndexController(indexPath);
 
+        int forkedParsers = 0, forkHeapMb = ContentExtractor.DEFAULT_FORK_HEAP_MB;
+        int opt = 0;
+        options:
+        for (; opt < args.length; opt++) {
+            try {
+                switch (args[opt]) {
+                    case "--workers":
+                        indexController.setWorkers(Integer.parseInt(args[++opt]));
+                        break;
+                    case "--commit-docs":
+                        indexController.setCommitMaxDocs(Integer.parseInt(args[++opt]));
+                        break;
+                    case "--commit-mb":
+                        indexController.setCommitMaxBytes(Long.parseLong(args[++opt]) * 1024 * 1024);
+                        break;
+                    case "--commit-secs":
+                        indexController.setCommitMaxDelayMillis(Long.parseLong(args[++opt]) * 1000);
+                        break;
+                    case "--lang-sample":
+                        indexController.setLanguageSampleChars(Integer.parseInt(args[++opt]));
+                        break;
+                    case "--lang-chunks":
+                        indexController.setLanguageSampleChunks(Integer.parseInt(args[++opt]));
+                        break;
+                    case "--lang-budget":
+                        indexController.setLanguageSampleBudget(Integer.parseInt(args[++opt]));
+                        break;
+                    case "--max-chars":
+                        indexController.setMaxContentChars(Long.parseLong(args[++opt]));
+                        break;
+                    case "--parse-timeout":
+                        indexController.setParseTimeoutMillis(Long.parseLong(args[++opt]) * 1000);
+                        break;
+                    case "--fork":
+                        forkedParsers = Integer.parseInt(args[++opt]);
+                        break;
+                    case "--fork-heap-mb":
+                        forkHeapMb = Integer.parseInt(args[++opt]);
+                        break;
+                    case "--metrics":
+                        indexController.logMetricsEvery(Long.parseLong(args[++opt]));
+                        break;
+                    case "--quiet-ms":
+                        indexController.setQuietMillis(Long.parseLong(args[++opt]));
+                        break;
+                    case "--bulk-ram-mb":
+                        indexController.setBulkRamBufferMb(Integer.parseInt(args[++opt]));
+                        break;
+                    case "--poll":
+                        indexController.setPollSeconds(Long.parseLong(args[++opt]));
+                        break;
+                    case "--poll-threads":
+                        indexController.setPollThreads(Integer.parseInt(args[++opt]));
+                        break;
+                    case "--hot":
+                        indexController.addHotDirectory(new File(args[++opt]));
+                        break;
+                    case "--sharded":
+                        indexController.setSharding(true);
+                        break;
+                    case "--store-content":
+                        indexController.setStoreContent(true);
+                        break;
+                    case "--hash":
+                        indexController.setContentHashing(true);
+                        break;
+                    default:
+                        break options;
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                System.err.println("Usage: " + usage);
+                System.exit(1);
+            }
+        }
+        args = Arrays.copyOfRange(args, opt, args.length);
+        indexController.setForkedParsers(forkedParsers, forkHeapMb);
+
         if (args.length == 0) indexController.watch();
         else if (args.length == 1 && args[0].equals("--reindex")) indexController.rebuildIndex();
         else if (args.length == 1 && args[0].equals("--purge")) indexController.clearIndex();
         else if (args.length == 1 && args[0].equals("--list")) indexController.listIndexedDirs();
+        else if (args.length == 1 && args[0].equals("--failed")) indexController.listFailedFiles();
         else if (args.length == 2 && args[0].equals("--add")) indexController.index(new File(args[1]));
         else if (args.length == 2 && args[0].equals("--rm")) indexController.deindex(new File(args[1]));
         else {
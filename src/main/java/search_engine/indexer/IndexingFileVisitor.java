@@ -11,42 +11,114 @@ import org.apache.tika.langdetect.OptimaizeLangDetector;
 import org.apache.tika.language.detect.LanguageDetector;
 import org.apache.tika.language.detect.LanguageResult;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.FileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
 
 class IndexingFileVisitor implements FileVisitor<Path> {
-    private IndexController indexController;
+    private IndexingPipeline pipeline;
+    private FileCatalog catalog;
+    private Map<String, FileCatalog.Entry> catalogued;
+    private Set<String> skipped;
+    private int unchanged = 0;
 
-    IndexingFileVisitor(IndexController indexController) {
+    /**
+     * Files found in {@code catalogued} with matching size and modification time
+     * are skipped; the entries of all visited files are removed from the map, so
+     * after the walk it holds only the files that have vanished. Symlinked
+     * files whose targets are not in the map are looked up in the catalog.
+     */
+    IndexingFileVisitor(IndexingPipeline pipeline, FileCatalog catalog, Map<String, FileCatalog.Entry> catalogued) {
+        this(pipeline, catalog, catalogued, Collections.emptySet());
+    }
+
+    /**
+     * Like the above, but does not descend into the given directories, which
+     * are indexed directories of their own nested in the one being walked.
+     * Their files are left in {@code catalogued}.
+     */
+    IndexingFileVisitor(IndexingPipeline pipeline, FileCatalog catalog, Map<String, FileCatalog.Entry> catalogued,
+                        Set<String> skipped) {
         super();
-        this.indexController = indexController;
+        this.pipeline = pipeline;
+        this.catalog = catalog;
+        this.catalogued = catalogued;
+        this.skipped = skipped;
+    }
+
+    int getUnchanged() {
+        return unchanged;
     }
 
     @Override
     public FileVisitResult visitFile (Path file, BasicFileAttributes attrs) {
-        indexController.indexDocument(file);
+        String path = file.toString();
+        boolean link = attrs.isSymbolicLink();
+        try {
+            if (link) {
+                path = file.toFile().getCanonicalPath();
+                attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            }
+        } catch (IOException e) {
+            System.err.printf("Error visiting file %s: %s%n", file.toAbsolutePath(), e.getMessage());
+            keep(path);
+            return FileVisitResult.CONTINUE;
+        }
+
+        FileCatalog.Entry entry = catalogued.remove(path);
+        /* A link's target may lie outside the snapshot, e.g. outside the walked directory */
+        if (entry == null && link)
+            entry = catalog.get(path);
+        if (entry != null && entry.isCurrent(attrs.size(), attrs.lastModifiedTime().toMillis(),
+                IndexController.INDEX_VERSION))
+            unchanged++;
+        else
+            pipeline.submit(file.toFile());
         return FileVisitResult.CONTINUE;
     }
 
     @Override
     public FileVisitResult visitFileFailed(Path file, IOException e) {
         System.err.printf("Error visiting file %s: %s%n", file.toAbsolutePath(), e.getMessage());
+        keep(file.toString());
         return FileVisitResult.CONTINUE;
     }
 
     @Override
     public FileVisitResult postVisitDirectory(Path dir, IOException e) {
-        if (e != null)
+        if (e != null) {
             System.err.printf("Error visiting directory %s: %s%n", dir.toAbsolutePath(), e.getMessage());
+            keep(dir.toString());
+        }
         return FileVisitResult.CONTINUE;
     }
 
+    /**
+     * Takes a path that could not be read, and everything under it, out of
+     * {@code catalogued}, so a failure is not mistaken for the files having
+     * vanished. They are looked at again on the next walk.
+     */
+    private void keep(String path) {
+        removeUnder(catalogued, path);
+    }
+
+    /**
+     * Removes the entry of the path and those of everything under it.
+     */
+    static void removeUnder(Map<String, FileCatalog.Entry> catalogued, String path) {
+        String prefix = path + File.separator;
+        catalogued.keySet().removeIf(key -> key.equals(path) || key.startsWith(prefix));
+    }
+
     @Override
     public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
-        return FileVisitResult.CONTINUE;
+        return skipped.contains(dir.toString()) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
     }
 }
@@ -0,0 +1,65 @@
+package search_engine.indexer;
+
+import java.io.File;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Feeds files found by the directory walker to a pool of workers which run
+ * extraction and language detection concurrently and add the resulting
+ * documents to the shared (thread-safe) IndexWriter of the given shard,
+ * committing through its CommitScheduler.
+ *
+ * The queue between the walker and the workers is bounded; once it is full
+ * the walker indexes the file itself, which keeps it from running ahead.
+ */
+class IndexingPipeline implements AutoCloseable {
+
+    private static final int QUEUE_PER_WORKER = 64;
+
+    private final IndexController indexController;
+    private final Shard shard;
+    private final ThreadPoolExecutor workers;
+    private final AtomicInteger processed = new AtomicInteger();
+    private final long start;
+
+    IndexingPipeline(IndexController indexController, Shard shard, int workerCount) {
+        this.indexController = indexController;
+        this.shard = shard;
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(workerCount * QUEUE_PER_WORKER),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.start = System.nanoTime();
+    }
+
+    void submit(File file) {
+        workers.execute(() -> {
+            indexController.indexDocument(file, shard);
+            processed.incrementAndGet();
+        });
+    }
+
+    int queueDepth() {
+        return workers.getQueue().size();
+    }
+
+    @Override
+    public void close() {
+        workers.shutdown();
+        try {
+            while (!workers.awaitTermination(1, TimeUnit.MINUTES))
+                System.out.printf("Waiting for %d queued files...%n", queueDepth());
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int files = processed.get();
+        System.out.printf("Processed %d files in %.1f s (%.1f files/s, %d workers)%n",
+                files, seconds, seconds > 0 ? files / seconds : 0.0, workers.getMaximumPoolSize());
+    }
+}
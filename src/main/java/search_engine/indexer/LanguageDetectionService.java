@@ -0,0 +1,115 @@
+package search_engine.indexer;
+
+import java.io.IOException;
+import java.io.PushbackReader;
+import java.nio.CharBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.tika.langdetect.OptimaizeLangDetector;
+import org.apache.tika.language.detect.LanguageDetector;
+import org.apache.tika.language.detect.LanguageResult;
+import search_engine.metrics.Timer;
+
+/**
+ * Detects the language of extracted text. Detectors, with their models, are
+ * kept in a pool that lives as long as the service, so models are loaded at
+ * most once per concurrent detection rather than once per worker thread of
+ * every pipeline. Only a bounded sample of the text is inspected:
+ * a prefix for short texts, or evenly spaced chunks for longer ones. Texts
+ * that are streamed rather than held in memory are sampled from their first
+ * characters, up to the sample budget.
+ */
+class LanguageDetectionService {
+
+    static final int DEFAULT_SAMPLE_CHARS = 4096;
+    static final int DEFAULT_SAMPLE_CHUNKS = 4;
+    static final int DEFAULT_SAMPLE_BUDGET = 64 * 1024;
+
+    /* Detectors keep per-text state, so each is used by one thread at a time */
+    private final Queue<LanguageDetector> detectors = new ConcurrentLinkedQueue<>();
+
+    private volatile int sampleChars = DEFAULT_SAMPLE_CHARS;
+    private volatile int sampleChunks = DEFAULT_SAMPLE_CHUNKS;
+    private volatile int sampleBudget = DEFAULT_SAMPLE_BUDGET;
+    private final Timer detections;
+
+    LanguageDetectionService(Timer detections) {
+        this.detections = detections;
+    }
+
+    void setSampleChars(int sampleChars) {
+        if (sampleChars > 0)
+            this.sampleChars = sampleChars;
+    }
+
+    /**
+     * Sets how many evenly spaced chunks make up the sample; 1 samples the prefix only.
+     */
+    void setSampleChunks(int sampleChunks) {
+        if (sampleChunks > 0)
+            this.sampleChunks = sampleChunks;
+    }
+
+    /**
+     * Sets how many characters of a streamed text are read ahead to take the
+     * sample from.
+     */
+    void setSampleBudget(int sampleBudget) {
+        if (sampleBudget > 0)
+            this.sampleBudget = sampleBudget;
+    }
+
+    int getSampleBudget() {
+        return sampleBudget;
+    }
+
+    /**
+     * Returns the detected language code, or null if it could not be determined.
+     */
+    String detect(CharSequence text) {
+        long start = System.nanoTime();
+        LanguageDetector detector = detectors.poll();
+        if (detector == null)
+            detector = new OptimaizeLangDetector().loadModels();
+        LanguageResult result;
+        try {
+            result = detector.detect(sample(text));
+        } finally {
+            detectors.add(detector);
+        }
+        detections.recordSince(start);
+        return result.isUnknown() ? null : result.getLanguage();
+    }
+
+    /**
+     * Detects the language of a streamed text from up to {@code budget} of its
+     * first characters, then pushes them back so the text can still be read
+     * from the start. The reader must be able to push back that many.
+     */
+    String detect(PushbackReader text, int budget) throws IOException {
+        char[] head = new char[budget];
+        int length = 0;
+        for (int n; length < budget && (n = text.read(head, length, budget - length)) != -1; )
+            length += n;
+        text.unread(head, 0, length);
+        return detect(CharBuffer.wrap(head, 0, length));
+    }
+
+    private CharSequence sample(CharSequence text) {
+        int chars = sampleChars, chunks = sampleChunks;
+        if (text.length() <= chars)
+            return text;
+        if (chunks == 1)
+            return text.subSequence(0, chars);
+
+        int chunk = chars / chunks;
+        int stride = (text.length() - chunk) / (chunks - 1);
+        StringBuilder sample = new StringBuilder(chunk * chunks + chunks);
+        for (int i = 0; i < chunks; i++) {
+            int start = i * stride;
+            sample.append(text, start, start + chunk).append(' ');
+        }
+        return sample;
+    }
+}
@@ -0,0 +1,219 @@
+package search_engine.indexer;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds changes in directory trees by polling file metadata, for trees too
+ * big to hold a native watch on every directory. Each pass lists every
+ * directory in parallel and reads only the size and modification time of
+ * its entries.
+ *
+ * No per-file state is kept. The snapshot is a tree with a node per
+ * directory, holding the directory's name, its subdirectories and two
+ * 64-bit fingerprints: one of the names, sizes and modification times of
+ * its files, and one of the names of its subdirectories. A pass reports the
+ * directories whose file fingerprint changed, to be reconciled with the
+ * catalog, and the subdirectories that disappeared.
+ */
+class PollingScanner {
+
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private static final class Node {
+        final String name;
+        long files;
+        long dirs;
+        Node[] children = NO_CHILDREN;
+
+        Node(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * What a pass over one tree found.
+     */
+    static class Changes {
+        final List<Path> changed;
+        final List<Path> vanished;
+
+        Changes(List<Path> changed, List<Path> vanished) {
+            this.changed = changed;
+            this.vanished = vanished;
+        }
+
+        boolean isEmpty() {
+            return changed.isEmpty() && vanished.isEmpty();
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final Set<Path> skipped;
+    private final Map<Path, Node> roots = new HashMap<>();
+    private final Map<Path, Long> directories = new ConcurrentHashMap<>();
+
+    /**
+     * Scans with the given number of threads, leaving out the given subtrees,
+     * which are watched natively.
+     */
+    PollingScanner(int threads, Set<Path> skipped) {
+        this.pool = new ForkJoinPool(threads);
+        this.skipped = skipped;
+    }
+
+    /**
+     * Returns how many directories the snapshot of all trees holds.
+     */
+    long getDirectories() {
+        long sum = 0;
+        for (long count: directories.values())
+            sum += count;
+        return sum;
+    }
+
+    /**
+     * Scans a tree and returns what changed since it was last scanned. The
+     * first scan of a tree only takes the snapshot and reports nothing.
+     */
+    Changes scan(Path root) throws IOException {
+        if (!Files.isDirectory(root))
+            throw new NoSuchFileException(root.toString());
+
+        Node node = roots.get(root);
+        boolean first = node == null;
+        if (first) {
+            node = new Node(root.toString());
+            roots.put(root, node);
+        }
+
+        Scan scan = new Scan(root, node, !first, new ConcurrentLinkedQueue<>(), new ConcurrentLinkedQueue<>(),
+                new AtomicLong());
+        pool.invoke(scan);
+        directories.put(root, scan.count.get());
+        return new Changes(new ArrayList<>(scan.changed), new ArrayList<>(scan.vanished));
+    }
+
+    void close() {
+        pool.shutdownNow();
+    }
+
+    private static long fingerprint(String name, long size, long modified) {
+        long h = name.hashCode() * 0x9E3779B97F4A7C15L;
+        h ^= (size + 0x632BE59BD9B4E019L) * 0xC2B2AE3D27D4EB4FL;
+        h ^= (modified + 0x165667B19E3779F9L) * 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 29);
+    }
+
+    private class Scan extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final Node node;
+        private final boolean report;
+        private final ConcurrentLinkedQueue<Path> changed;
+        private final ConcurrentLinkedQueue<Path> vanished;
+        private final AtomicLong count;
+
+        Scan(Path dir, Node node, boolean report, ConcurrentLinkedQueue<Path> changed,
+             ConcurrentLinkedQueue<Path> vanished, AtomicLong count) {
+            this.dir = dir;
+            this.node = node;
+            this.report = report;
+            this.changed = changed;
+            this.vanished = vanished;
+            this.count = count;
+        }
+
+        @Override
+        protected void compute() {
+            count.incrementAndGet();
+            /* Entries are combined with XOR, so the order they are listed in does not matter */
+            long files = 0, dirs = 0;
+            List<String> subdirs = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry: entries) {
+                    String name = entry.getFileName().toString();
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (NoSuchFileException e) {
+                        continue;
+                    }
+                    if (attrs.isDirectory()) {
+                        if (!skipped.contains(entry)) {
+                            subdirs.add(name);
+                            dirs ^= fingerprint(name, -1, -1);
+                        }
+                    } else
+                        files ^= fingerprint(name, attrs.size(), attrs.lastModifiedTime().toMillis());
+                }
+            } catch (NoSuchFileException e) {
+                /* Gone since its parent was listed; reported by the parent on the next pass */
+                return;
+            } catch (IOException e) {
+                System.err.printf("Error polling %s: %s%n", dir.toAbsolutePath(), e.getMessage());
+                return;
+            }
+
+            if (files != node.files) {
+                node.files = files;
+                if (report)
+                    changed.add(dir);
+            }
+            if (dirs != node.dirs) {
+                node.dirs = dirs;
+                node.children = children(subdirs);
+            }
+
+            List<Scan> scans = new ArrayList<>(node.children.length);
+            for (Node child: node.children)
+                scans.add(new Scan(dir.resolve(child.name), child, report, changed, vanished, count));
+            invokeAll(scans);
+        }
+
+        /**
+         * Returns the nodes of the given subdirectories, reusing those already
+         * in the snapshot, and reports the ones no longer there.
+         */
+        private Node[] children(List<String> names) {
+            Collections.sort(names);
+            Node[] previous = node.children, children = new Node[names.size()];
+            int at = 0;
+            for (int i = 0; i < children.length; i++) {
+                String name = names.get(i);
+                while (at < previous.length && previous[at].name.compareTo(name) < 0) {
+                    if (report)
+                        vanished.add(dir.resolve(previous[at].name));
+                    at++;
+                }
+                children[i] = at < previous.length && previous[at].name.equals(name)
+                        ? previous[at++]
+                        : new Node(name);
+            }
+            if (report)
+                for (Node gone: Arrays.copyOfRange(previous, at, previous.length))
+                    vanished.add(dir.resolve(gone.name));
+            return children;
+        }
+    }
+}
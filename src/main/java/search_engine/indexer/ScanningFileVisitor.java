@@ -9,6 +9,7 @@ import java.nio.file.attribute.BasicFileAttributes;
 class ScanningFileVisitor implements FileVisitor<Path> {
     private IndexedDirectoriesMonitor monitor;
     private boolean notifyIndex = false;
+    private FileVisitor<Path> files = null;
 
     ScanningFileVisitor (IndexedDirectoriesMonitor monitor, boolean notifyIndex) {
         super();
@@ -16,34 +17,51 @@ class ScanningFileVisitor implements FileVisitor<Path> {
         this.notifyIndex = notifyIndex;
     }
 
+    /**
+     * Registers directories with the monitor and hands files over to the given visitor.
+     */
+    ScanningFileVisitor (IndexedDirectoriesMonitor monitor, FileVisitor<Path> files) {
+        super();
+        this.monitor = monitor;
+        this.files = files;
+    }
+
     @Override
-    public FileVisitResult visitFile (Path file, BasicFileAttributes attrs) {
+    public FileVisitResult visitFile (Path file, BasicFileAttributes attrs) throws IOException {
+        if (files != null)
+            return files.visitFile(file, attrs);
         if (notifyIndex)
             monitor.notifyIndex(file);
         return FileVisitResult.CONTINUE;
     }
 
     @Override
-    public FileVisitResult visitFileFailed(Path file, IOException e) {
+    public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+        if (files != null)
+            return files.visitFileFailed(file, e);
         if (notifyIndex)
             System.err.printf("Error visiting file %s: %s%n", file.toAbsolutePath(), e.getMessage());
         return FileVisitResult.CONTINUE;
     }
 
     @Override
-    public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+    public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+        if (files != null)
+            return files.postVisitDirectory(dir, e);
         if (e != null)
             System.err.printf("Error registering directory %s: %s%n", dir.toAbsolutePath(), e.getMessage());
         return FileVisitResult.CONTINUE;
     }
 
     @Override
-    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
         try {
             monitor.register(dir);
         } catch (IOException e) {
             System.err.printf("Unable to register %s: %s%n", dir.toAbsolutePath(), e.getMessage());
         }
+        if (files != null)
+            return files.preVisitDirectory(dir, attrs);
         return FileVisitResult.CONTINUE;
     }
 }
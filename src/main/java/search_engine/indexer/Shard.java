@@ -0,0 +1,78 @@
+package search_engine.indexer;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.SQLException;
+
+/**
+ * An index directory together with the catalog of the files indexed in it.
+ * The main index is one; with sharding on, each indexed directory gets a
+ * shard of its own, which is merged, rebuilt and dropped on its own.
+ *
+ * While a shard is being written to, it holds the commit scheduler of its
+ * writer.
+ */
+class Shard implements AutoCloseable {
+
+    final Path path;
+    final Directory directory;
+    final FileCatalog catalog;
+    private volatile CommitScheduler commits;
+
+    Shard(Path path) throws IOException, SQLException {
+        this(path, FSDirectory.open(path), new FileCatalog(catalogPath(path)));
+    }
+
+    /**
+     * A shard written to the given directory while recording files in the
+     * catalog of another, as when a shard is rebuilt on the side.
+     */
+    Shard(Path path, Directory directory, FileCatalog catalog) {
+        this.path = path;
+        this.directory = directory;
+        this.catalog = catalog;
+    }
+
+    static Path catalogPath(Path path) {
+        return path.resolveSibling(path.getFileName() + ".catalog");
+    }
+
+    CommitScheduler getCommits() {
+        return commits;
+    }
+
+    boolean isWritable() {
+        return commits != null && commits.getWriter().isOpen();
+    }
+
+    void startWriting(CommitScheduler commits) {
+        this.commits = commits;
+    }
+
+    /**
+     * Commits what is pending and closes the writer, if there is one.
+     */
+    void stopWriting() throws IOException {
+        CommitScheduler open = commits;
+        commits = null;
+        if (open != null)
+            try {
+                open.close();
+            } finally {
+                open.getWriter().close();
+            }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            stopWriting();
+        } finally {
+            catalog.close();
+            directory.close();
+        }
+    }
+}
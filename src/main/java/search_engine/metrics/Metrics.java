@@ -0,0 +1,128 @@
+package search_engine.metrics;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Named timers, counters and gauges of one component. They are published as
+ * attributes of a JMX bean named {@code search_engine:type=<name>} and can
+ * be written out periodically as a single line of key=value pairs.
+ */
+public class Metrics {
+
+    private final String name;
+    private final Map<String, Timer> timers = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private ScheduledExecutorService logger = null;
+
+    public Metrics(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Timer timer(String name) {
+        return timers.computeIfAbsent(name, n -> new Timer());
+    }
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Registers a value read whenever metrics are reported, replacing any
+     * previous gauge of that name.
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Returns the current value of every metric, timers broken down into
+     * count, mean, percentiles and maximum in milliseconds.
+     */
+    public Map<String, Number> snapshot() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Timer> timer: timers.entrySet()) {
+            Timer t = timer.getValue();
+            String n = timer.getKey();
+            long count = t.getCount();
+            values.put(n + ".count", count);
+            values.put(n + ".mean_ms", count > 0 ? t.getTotalNanos() / 1e6 / count : 0.0);
+            values.put(n + ".p50_ms", t.getPercentileNanos(0.5) / 1e6);
+            values.put(n + ".p99_ms", t.getPercentileNanos(0.99) / 1e6);
+            values.put(n + ".max_ms", t.getMaxNanos() / 1e6);
+        }
+        for (Map.Entry<String, LongAdder> counter: counters.entrySet())
+            values.put(counter.getKey(), counter.getValue().sum());
+        for (Map.Entry<String, LongSupplier> gauge: gauges.entrySet())
+            values.put(gauge.getKey(), gauge.getValue().getAsLong());
+        return values;
+    }
+
+    /**
+     * Publishes the metrics through the platform MBean server.
+     */
+    public void register() {
+        try {
+            ObjectName objectName = new ObjectName("search_engine", "type", name);
+            if (ManagementFactory.getPlatformMBeanServer().isRegistered(objectName))
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(this), objectName);
+        } catch (JMException e) {
+            System.err.printf("Error registering %s metrics: %s%n", name, e.getMessage());
+        }
+    }
+
+    /**
+     * Writes all metrics to standard error every given number of seconds, with
+     * counters also as per-second rates since the previous line; 0 stops it.
+     */
+    public synchronized void logEvery(long seconds) {
+        if (logger != null) {
+            logger.shutdownNow();
+            logger = null;
+        }
+        if (seconds <= 0)
+            return;
+
+        logger = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        Map<String, Long> previous = new HashMap<>();
+        logger.scheduleAtFixedRate(() -> System.err.println(logLine(previous, seconds)),
+                seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    private String logLine(Map<String, Long> previous, long seconds) {
+        StringJoiner line = new StringJoiner(" ");
+        line.add("metrics").add("type=" + name).add("time=" + System.currentTimeMillis());
+        for (Map.Entry<String, Number> value: snapshot().entrySet()) {
+            Number number = value.getValue();
+            line.add(value.getKey() + "=" + (number instanceof Double
+                    ? String.format("%.3f", number.doubleValue()) : number.toString()));
+        }
+        for (Map.Entry<String, LongAdder> counter: counters.entrySet()) {
+            long now = counter.getValue().sum();
+            Long before = previous.put(counter.getKey(), now);
+            line.add(String.format("%s.per_s=%.1f", counter.getKey(), (now - (before != null ? before : 0)) / (double) seconds));
+        }
+        return line.toString();
+    }
+}
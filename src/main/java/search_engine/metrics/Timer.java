@@ -0,0 +1,63 @@
+package search_engine.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with power-of-two buckets: cheap enough to record from
+ * every indexing and search thread, precise to within a factor of two for
+ * percentiles, which is plenty to spot a regression.
+ */
+public class Timer {
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos) - (nanos == 0 ? 0 : 1));
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos}, as returned by System.nanoTime().
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * Returns an upper bound of the given quantile of recorded times, in nanoseconds.
+     */
+    public long getPercentileNanos(double quantile) {
+        long total = getCount();
+        if (total == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(quantile * total), seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= rank)
+                return Math.min(i == 63 ? Long.MAX_VALUE : (1L << (i + 1)) - 1, getMaxNanos());
+        }
+        return getMaxNanos();
+    }
+}
@@ -0,0 +1,87 @@
+package search_engine.search;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.Scorable;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.SimpleCollector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts the values of the facet dimensions over all hits of a query. Meant
+ * to be run in the same pass as the top hits collector; values are counted
+ * by segment ordinal and only resolved to strings once collection is done.
+ */
+class FacetCollector extends SimpleCollector {
+
+    static final String[] DIMENSIONS = {"root", "type", "language", "year"};
+
+    private static class LeafCounts {
+        final SortedDocValues[] values = new SortedDocValues[DIMENSIONS.length];
+        final int[][] counts = new int[DIMENSIONS.length][];
+    }
+
+    private final List<LeafCounts> leaves = new ArrayList<>();
+    private LeafCounts leaf;
+
+    @Override
+    protected void doSetNextReader(LeafReaderContext context) throws IOException {
+        leaf = new LeafCounts();
+        for (int i = 0; i < DIMENSIONS.length; i++) {
+            leaf.values[i] = DocValues.getSorted(context.reader(), DIMENSIONS[i]);
+            leaf.counts[i] = new int[leaf.values[i].getValueCount()];
+        }
+        leaves.add(leaf);
+    }
+
+    @Override
+    public void setScorer(Scorable scorer) {
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+        for (int i = 0; i < DIMENSIONS.length; i++) {
+            SortedDocValues values = leaf.values[i];
+            if (values.advanceExact(doc))
+                leaf.counts[i][values.ordValue()]++;
+        }
+    }
+
+    @Override
+    public ScoreMode scoreMode() {
+        return ScoreMode.COMPLETE_NO_SCORES;
+    }
+
+    /**
+     * Returns the top values of each dimension with their hit counts, most
+     * frequent first.
+     */
+    Map<String, Map<String, Long>> getCounts(int top) throws IOException {
+        Map<String, Map<String, Long>> facets = new LinkedHashMap<>();
+        for (int i = 0; i < DIMENSIONS.length; i++) {
+            Map<String, Long> counts = new HashMap<>();
+            for (LeafCounts leaf: leaves)
+                for (int ord = 0; ord < leaf.counts[i].length; ord++)
+                    if (leaf.counts[i][ord] > 0)
+                        counts.merge(leaf.values[i].lookupOrd(ord).utf8ToString(), (long) leaf.counts[i][ord], Long::sum);
+
+            Map<String, Long> sorted = new LinkedHashMap<>();
+            counts.entrySet().stream()
+                    .sorted(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder())
+                            .thenComparing(Map.Entry.comparingByKey()))
+                    .limit(top)
+                    .forEach(e -> sorted.put(e.getKey(), e.getValue()));
+            if (!sorted.isEmpty())
+                facets.put(DIMENSIONS[i], sorted);
+        }
+        return facets;
+    }
+}
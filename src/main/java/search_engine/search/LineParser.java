@@ -2,33 +2,74 @@ package search_engine.search;
 
 import org.jline.terminal.Terminal;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 public class LineParser implements AutoCloseable {
 
-    private QueryExecutor queryExecutor;
+    private static final int COMPLETIONS = 20;
+
+    private SearchService searchService;
+    private SearchRequest settings = new SearchRequest();
+    private boolean pager = true;
 
     public LineParser (Path indexPath) throws IOException {
-        this.queryExecutor = new QueryExecutor(indexPath);
+        this(indexPath, 1);
+    }
+
+    public LineParser (Path indexPath, int searchThreads) throws IOException {
+        this(new QueryExecutor(indexPath, searchThreads));
+    }
+
+    /**
+     * Runs queries on the given service, e.g. a client of a search server.
+     */
+    public LineParser (SearchService searchService) {
+        this.searchService = searchService;
     }
 
     @Override
     public void close() throws IOException {
-        queryExecutor.close();
+        searchService.close();
+    }
+
+    /**
+     * Returns the argument of a command that takes one, failing with the
+     * command's usage if it was left out.
+     */
+    private static String argument (String[] cmd, String usage) {
+        if (cmd.length < 2)
+            throw new IllegalArgumentException("Usage: " + usage);
+        return cmd[1];
+    }
+
+    private static int number (String[] cmd, String usage) {
+        try {
+            return Integer.parseInt(argument(cmd, usage));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Usage: " + usage);
+        }
     }
 
-    public void parseCommand (String line) throws IllegalArgumentException {
+    public String parseCommand (String line) throws IllegalArgumentException {
         String[] cmd = line.split("\\s+");
         switch (cmd[0]) {
 
             case "%lang":
-                switch (cmd[1]) {
+                switch (argument(cmd, "%lang pl|en|both")) {
                     case "pl":
-                        queryExecutor.setLang(QueryExecutor.Lang.PL);
+                        settings.setLang(QueryExecutor.Lang.PL);
                         break;
                     case "en":
-                        queryExecutor.setLang(QueryExecutor.Lang.EN);
+                        settings.setLang(QueryExecutor.Lang.EN);
+                        break;
+                    case "both":
+                    case "auto":
+                        settings.setLang(QueryExecutor.Lang.BOTH);
                         break;
                     default:
                         throw new IllegalArgumentException("Language not found");
@@ -36,12 +77,12 @@ public class LineParser implements AutoCloseable {
                 break;
 
             case "%details":
-                switch (cmd[1]) {
+                switch (argument(cmd, "%details on|off")) {
                     case "on":
-                        queryExecutor.setDetails(true);
+                        settings.setDetails(true);
                         break;
                     case "off":
-                        queryExecutor.setDetails(false);
+                        settings.setDetails(false);
                         break;
                     default:
                         throw new IllegalArgumentException("Unknown option");
@@ -49,43 +90,154 @@ public class LineParser implements AutoCloseable {
                 break;
 
             case "%color":
-                switch (cmd[1]) {
+                switch (argument(cmd, "%color on|off")) {
+                    case "on":
+                        settings.setColor(true);
+                        break;
+                    case "off":
+                        settings.setColor(false);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option");
+                }
+                break;
+
+            case "%pager":
+                switch (argument(cmd, "%pager on|off")) {
                     case "on":
-                        queryExecutor.setColor(true);
+                        pager = true;
                         break;
                     case "off":
-                        queryExecutor.setColor(false);
+                        pager = false;
                         break;
                     default:
                         throw new IllegalArgumentException("Unknown option");
                 }
                 break;
 
+            case "%page":
+                settings.setPageSize(number(cmd, "%page <results>"));
+                break;
+
             case "%limit":
-                queryExecutor.setLimit(Integer.parseInt(cmd[1]));
+                settings.setLimit(number(cmd, "%limit <results>"));
+                break;
+
+
+            case "%dir":
+                if (cmd.length > 1)
+                    try {
+                        settings.setDir(new File(line.substring(cmd[0].length()).trim()).getCanonicalPath());
+                    } catch (IOException e) {
+                        throw new IllegalArgumentException(e.getMessage());
+                    }
+                else
+                    settings.setDir(null);
+                break;
+
+
+            case "%facets":
+                switch (argument(cmd, "%facets on|off")) {
+                    case "on":
+                        settings.setFacets(true);
+                    break;
+                    case "off":
+                        settings.setFacets(false);
+                    break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option");
+                }
+                break;
+
+
+            case "%drill":
+                if (cmd.length > 2) {
+                    if (!Arrays.asList(FacetCollector.DIMENSIONS).contains(cmd[1]))
+                        throw new IllegalArgumentException("Unknown facet " + cmd[1]);
+                    String facetAndValue = line.substring(cmd[0].length()).trim();
+                    settings.drillDown(cmd[1], facetAndValue.substring(cmd[1].length()).trim());
+                } else if (cmd.length == 1)
+                    settings.clearDrillDowns();
+                else
+                    throw new IllegalArgumentException("Usage: %drill <facet> <value>");
                 break;
 
 
             case "%term":
-                queryExecutor.setMode(QueryExecutor.Mode.TERM);
+                settings.setMode(QueryExecutor.Mode.TERM);
                 break;
 
 
             case "%phrase":
-                queryExecutor.setMode(QueryExecutor.Mode.PHRASE);
+                settings.setMode(QueryExecutor.Mode.PHRASE);
                 break;
 
 
             case "%fuzzy":
-                queryExecutor.setMode(QueryExecutor.Mode.FUZZY);
+                settings.setMode(QueryExecutor.Mode.FUZZY);
                 break;
 
+
+            case "%refresh":
+                if (cmd.length > 1) {
+                    if (!(searchService instanceof QueryExecutor))
+                        throw new IllegalArgumentException("Refresh interval is set by the server");
+                    ((QueryExecutor) searchService).setRefreshSeconds(number(cmd, "%refresh [<secs>]"));
+                } else
+                    try {
+                        searchService.refresh();
+                    } catch (IOException e) {
+                        throw new IllegalArgumentException(e.getMessage());
+                    }
+                break;
+
+            case "%cache":
+                if (!(searchService instanceof QueryExecutor))
+                    throw new IllegalArgumentException("Results are cached by the server");
+                QueryExecutor executor = (QueryExecutor) searchService;
+                if (cmd.length > 1) {
+                    if (cmd[1].equals("clear"))
+                        executor.clearCache();
+                    else
+                        executor.setCacheBytes(Long.parseLong(cmd[1]) * 1024 * 1024);
+                }
+                return "Cache: " + executor.getCacheStats();
+
+            case "%metrics":
+                if (!(searchService instanceof QueryExecutor))
+                    throw new IllegalArgumentException("Metrics are kept by the server");
+                QueryExecutor measured = (QueryExecutor) searchService;
+                if (cmd.length > 1) {
+                    measured.logMetricsEvery(Long.parseLong(cmd[1]));
+                    break;
+                }
+                StringBuilder metrics = new StringBuilder();
+                for (Map.Entry<String, Number> metric: measured.getMetrics().entrySet())
+                    metrics.append(String.format("%s=%s%n", metric.getKey(), metric.getValue()));
+                return metrics.toString().trim();
+
             default:
                 throw new IllegalArgumentException("No idea what you mean, mate");
         }
+        return null;
     }
 
     public SearchResults runQuery (String line) throws IOException {
-        return queryExecutor.search(line);
+        return searchService.search(settings.forQuery(line));
+    }
+
+    /**
+     * Returns completions of a word being typed, in the current search language.
+     */
+    public List<String> complete (String prefix) throws IOException {
+        return searchService.complete(prefix, settings.getLang(), COMPLETIONS);
+    }
+
+    public boolean isPagerOn () {
+        return pager;
+    }
+
+    public int getPageSize () {
+        return settings.getPageSize();
     }
 }
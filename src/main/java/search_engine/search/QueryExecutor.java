@@ -3,28 +3,42 @@ package search_engine.search;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.en.EnglishAnalyzer;
 import org.apache.lucene.analysis.pl.PolishAnalyzer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.*;
 import org.apache.lucene.search.highlight.SimpleHTMLFormatter;
 import org.apache.lucene.search.uhighlight.PassageFormatter;
 import org.apache.lucene.search.uhighlight.UnifiedHighlighter;
-import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.QueryBuilder;
 import org.apache.lucene.search.uhighlight.DefaultPassageFormatter;
 
+import search_engine.indexer.ContentExtractor;
+import search_engine.metrics.Metrics;
+import search_engine.metrics.Timer;
 import search_engine.search.SearchResults.SearchResult;
 
-public class QueryExecutor implements AutoCloseable {
+public class QueryExecutor implements SearchService {
 
     public enum Mode {
         TERM,
@@ -34,103 +48,453 @@ public class QueryExecutor implements AutoCloseable {
 
     public enum Lang {
         PL,
-        EN
+        EN,
+        /* Polish and English at once, each analyzed its own way */
+        BOTH
     }
 
-    private Mode mode = Mode.TERM;
-    private Lang lang = Lang.EN;
-    private IndexSearcher searcher;
-    private IndexReader reader;
-    private int limit = Integer.MAX_VALUE;
-    private boolean details = false;
-    private boolean color = true;
+    /* How many values of each facet dimension are reported */
+    private static final int FACET_VALUES = 10;
+
+    private SearchRequest settings = new SearchRequest();
+    private ShardSearcherManager searcherManager;
+    private ScheduledExecutorService refresher;
+    private ExecutorService suggesterBuilder;
+    private ScheduledFuture<?> scheduledRefresh;
+    private int refreshSeconds = 5;
     private PassageFormatter blankFormatter = new DefaultPassageFormatter("","","...",false);
     private PassageFormatter colorFormatter = new DefaultPassageFormatter("\033[31m", "\033[0m", "...", false);
-    private UnifiedHighlighter polishHighlighter;
-    private UnifiedHighlighter englishHighlighter;
     private PolishAnalyzer polishAnalyzer;
     private EnglishAnalyzer englishAnalyzer;
+    private ContentExtractor extractor = new ContentExtractor();
+    private ExecutorService searchExecutor = null;
+    private int searchThreads = 1;
+    private ResultCache resultCache = new ResultCache(ResultCache.DEFAULT_MAX_BYTES);
+    private final Metrics metrics = new Metrics("Search");
+    private final Timer parseTimer = metrics.timer("query.parse");
+    private final Timer searchTimer = metrics.timer("query.search");
+    private final Timer fetchTimer = metrics.timer("query.fetch");
+    private final Timer highlightTimer = metrics.timer("query.highlight");
+    private final Timer completeTimer = metrics.timer("complete");
+    private final TermSuggester suggester = new TermSuggester();
 
 
     public QueryExecutor (Path indexDir) throws IOException {
-        reader = DirectoryReader.open(FSDirectory.open(indexDir));
-        searcher = new IndexSearcher(reader);
+        this(indexDir, 1);
+    }
+
+    /**
+     * With more than one search thread, each query searches the index segments
+     * in parallel on a pool of that size, and pages of results are highlighted
+     * in parallel too.
+     */
+    public QueryExecutor (Path indexDir, int searchThreads) throws IOException {
+        this.searchThreads = Math.max(1, searchThreads);
+        if (searchThreads > 1)
+            searchExecutor = Executors.newFixedThreadPool(searchThreads, r -> {
+                Thread thread = new Thread(r, "searcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+        searcherManager = new ShardSearcherManager(indexDir, searchExecutor);
+        searcherManager.addListener(new ReferenceManager.RefreshListener() {
+            @Override
+            public void beforeRefresh() {
+            }
+
+            @Override
+            public void afterRefresh(boolean didRefresh) {
+                if (didRefresh) {
+                    resultCache.clear();
+                    suggesterBuilder.execute(QueryExecutor.this::updateSuggester);
+                }
+            }
+        });
         polishAnalyzer = new PolishAnalyzer();
         englishAnalyzer = new EnglishAnalyzer();
-        polishHighlighter = new UnifiedHighlighter(searcher, polishAnalyzer);
-        englishHighlighter = new UnifiedHighlighter(searcher, englishAnalyzer);
-        setColor(true);
+        metrics.gauge("cache.hits", resultCache::getHits);
+        metrics.gauge("cache.misses", resultCache::getMisses);
+        metrics.gauge("cache.bytes", resultCache::getBytes);
+        metrics.register();
+        refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "index-refresher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        /* Building for a freshly merged segment takes a while; refreshes should not wait for it */
+        suggesterBuilder = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "suggester-builder");
+            thread.setDaemon(true);
+            return thread;
+        });
+        setRefreshSeconds(refreshSeconds);
+        suggesterBuilder.execute(this::updateSuggester);
+    }
+
+    /**
+     * Brings completions up to date with the current reader. Runs on the
+     * builder thread only, so builds never overlap.
+     */
+    private void updateSuggester () {
+        try {
+            IndexSearcher searcher = searcherManager.acquire();
+            try {
+                suggester.update(searcher.getIndexReader());
+            } finally {
+                searcherManager.release(searcher);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.printf("Error building completions: %s%n", e.getMessage());
+        }
+    }
+
+    /**
+     * Returns up to {@code count} words starting with the prefix, from the
+     * indexed content in the given language and from file names, most
+     * frequent first. Empty until completions are first built.
+     */
+    @Override
+    public List<String> complete (String prefix, Lang lang, int count) throws IOException {
+        long start = System.nanoTime();
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            return suggester.complete(searcher.getIndexReader(), languageFields(lang), prefix, count);
+        } finally {
+            searcherManager.release(searcher);
+            completeTimer.recordSince(start);
+        }
     }
 
     @Override
     public void close() throws IOException {
-        reader.close();
+        refresher.shutdownNow();
+        suggesterBuilder.shutdownNow();
+        searcherManager.close();
+        if (searchExecutor != null)
+            searchExecutor.shutdownNow();
     }
 
+    /**
+     * Switches to the latest commit of the index and of each of its shards if
+     * there is one. Only the segments that changed are opened; searches still
+     * running on the old reader finish on it before it is released.
+     */
+    public void refresh () {
+        try {
+            searcherManager.maybeRefreshBlocking();
+        } catch (IOException e) {
+            System.err.printf("Error refreshing index: %s%n", e.getMessage());
+        }
+    }
+
+    /**
+     * Runs the query with this executor's own settings.
+     */
     public SearchResults search (String queryString) throws IOException {
-        String field = languageAccurateField();
+        return search(settings.forQuery(queryString));
+    }
+
+    /**
+     * Runs a query with the settings it carries; safe to call from many threads.
+     * Requests repeated while the index has not changed are answered from the
+     * result cache.
+     */
+    @Override
+    public SearchResults search (SearchRequest request) throws IOException {
+        request = new SearchRequest(request);
+        metrics.counter("queries").increment();
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            long version = ShardSearcherManager.versionOf(searcher);
+            ResultCache.Entry cached = resultCache.get(request, version);
+            if (cached != null) {
+                searcherManager.release(searcher);
+                return SearchResults.of(cached.count, cached.exact, cached.results).withFacets(cached.facets);
+            }
+
+            long start = System.nanoTime();
+            Query query = query(request);
+            parseTimer.recordSince(start);
+            int limit = request.getLimit();
+            int firstPage = Math.min(request.getPageSize(), limit);
+            TopDocs first;
+            Map<String, Map<String, Long>> facets = null;
+            start = System.nanoTime();
+            if (request.areFacetsOn()) {
+                /* Facets need every hit anyway, so the count is exact too */
+                TopScoreDocCollector top = TopScoreDocCollector.create(firstPage, Integer.MAX_VALUE);
+                FacetCollector facetCollector = new FacetCollector();
+                searcher.search(query, MultiCollector.wrap(top, facetCollector));
+                first = top.topDocs();
+                facets = facetCollector.getCounts(FACET_VALUES);
+            } else
+                first = searcher.search(query, firstPage);
+            searchTimer.recordSince(start);
+
+            TotalHits total = first.totalHits;
+            long count = Math.min(total.value, limit);
+            boolean exact = total.relation == TotalHits.Relation.EQUAL_TO || total.value >= limit;
+            return new SearchResults(count, exact, new Pages(searcher, query, request, first,
+                    new ResultCache.Entry(version, count, exact, null, 0, facets))).withFacets(facets);
+
+        } catch (IOException | RuntimeException e) {
+            searcherManager.release(searcher);
+            throw e;
+        }
+    }
+
+    private Query query (SearchRequest request) {
         Query query;
+        if (request.getLang() == Lang.BOTH) {
+            /* A file has content in one language field only, so at most one clause scores it */
+            List<Query> languages = new ArrayList<>();
+            for (Lang lang: new Lang[] {Lang.PL, Lang.EN}) {
+                Query language = query(lang, request.getMode(), request.getQuery());
+                if (language != null)
+                    languages.add(language);
+            }
+            query = languages.isEmpty() ? new MatchNoDocsQuery() : new DisjunctionMaxQuery(languages, 0f);
+        } else
+            query = query(request.getLang(), request.getMode(), request.getQuery());
+
+        if (request.getDir() == null && request.getDrillDowns().isEmpty())
+            return query;
+        BooleanQuery.Builder filtered = new BooleanQuery.Builder().add(query, BooleanClause.Occur.MUST);
+        if (request.getDir() != null)
+            filtered.add(new TermQuery(new Term("ancestor", request.getDir())), BooleanClause.Occur.FILTER);
+        for (Map.Entry<String, String> drillDown: request.getDrillDowns().entrySet())
+            filtered.add(new TermQuery(new Term(drillDown.getKey(), drillDown.getValue())), BooleanClause.Occur.FILTER);
+        return filtered.build();
+    }
+
+    private Query query (Lang lang, Mode mode, String text) {
+        String field = languageAccurateField(lang);
         switch (mode) {
             case PHRASE:
-                query = phraseQuery(field, queryString);
-            break;
+                return phraseQuery(lang, field, text);
             case FUZZY:
-                query = fuzzyQuery(field, queryString);
-            break;
+                return fuzzyQuery(field, text);
             default:
-                query = termQuery(field, queryString);
-            break;
+                return termQuery(lang, field, text);
         }
-        return search(query);
     }
 
-    private SearchResults search (Query query) throws IOException {
-        TopDocs docs = searcher.search(query, limit);
-        SearchResult[] results = new SearchResult[(int) docs.totalHits.value];
-        String[] contexts = null;
+    /**
+     * Fetches the results of a query page by page using searchAfter, loading
+     * stored fields and highlights only for the page being returned. Results
+     * iterated to the end are put in the result cache, unless too big.
+     */
+    private class Pages implements SearchResults.PageSource {
+        private final IndexSearcher searcher;
+        private final Query query;
+        private final String[] fields;
+        private final UnifiedHighlighter highlighter;
+        private final int pageSize;
+        private TopDocs prefetched;
+        private ScoreDoc after = null;
+        private int remaining;
+        private boolean released = false;
+        private final SearchRequest request;
+        private final ResultCache.Entry header;
+        private List<SearchResult> collected = new ArrayList<>();
+        private long collectedBytes = 0;
 
-        if (details)
-            contexts = languageAccurateHighlighter().highlight(languageAccurateField(), query, docs);
+        Pages (IndexSearcher searcher, Query query, SearchRequest request, TopDocs first,
+               ResultCache.Entry header) {
+            this.request = request;
+            this.header = header;
+            this.searcher = searcher;
+            this.query = query;
+            this.fields = languageFields(request.getLang());
+            this.highlighter = request.areDetailsOn()
+                    ? languageAccurateHighlighter(searcher, request.getLang(), request.isColorOn())
+                    : null;
+            /* Without a match a field would be summarized instead, hiding the field that has one */
+            if (highlighter != null && fields.length > 1)
+                highlighter.setMaxNoHighlightPassages(0);
+            this.pageSize = request.getPageSize();
+            this.remaining = request.getLimit();
+            this.prefetched = first;
+        }
+
+        @Override
+        public List<SearchResult> nextPage() throws IOException {
+            TopDocs docs;
+            if (prefetched != null) {
+                docs = prefetched;
+                prefetched = null;
+            } else if (remaining > 0 && after != null && !released) {
+                long start = System.nanoTime();
+                docs = searcher.searchAfter(after, query, Math.min(pageSize, remaining));
+                searchTimer.recordSince(start);
+            } else
+                return exhausted();
+
+            ScoreDoc[] scoreDocs = docs.scoreDocs;
+            List<SearchResult> results = new ArrayList<>(scoreDocs.length);
+            if (scoreDocs.length == 0)
+                return exhausted();
+            remaining -= scoreDocs.length;
+            after = scoreDocs[scoreDocs.length - 1];
+
+            String[] contexts = null;
+            long start = System.nanoTime();
+            if (highlighter != null) {
+                contexts = highlight(docs);
+                highlightTimer.recordSince(start);
+                start = System.nanoTime();
+            }
+
+            String[] paths = loadPaths(searcher, scoreDocs);
+            fetchTimer.recordSince(start);
+            for (int i = 0; i < scoreDocs.length; i++)
+                results.add(new SearchResult(paths[i], contexts != null ? contexts[i] : null));
 
-        int i = 0;
-        for (ScoreDoc scoreDoc: docs.scoreDocs) {
-            Document doc = searcher.doc(scoreDoc.doc);
-            String path = doc.get("path"), context = null;
-            if (contexts != null)
-                context = contexts[i];
-            results[i++] = new SearchResult(path, context);
+            if (collected != null) {
+                for (SearchResult result: results)
+                    collectedBytes += ResultCache.estimateBytes(result);
+                if (collectedBytes > resultCache.maxEntryBytes())
+                    collected = null;
+                else
+                    collected.addAll(results);
+            }
+            return results;
+        }
+
+        private List<SearchResult> exhausted () {
+            if (collected != null && !released) {
+                resultCache.put(request, new ResultCache.Entry(header.version, header.count, header.exact,
+                        Collections.unmodifiableList(collected), collectedBytes, header.facets));
+                collected = null;
+            }
+            return new ArrayList<>();
+        }
+
+        private String[] highlight (TopDocs docs) throws IOException {
+            ScoreDoc[] scoreDocs = docs.scoreDocs;
+            if (searchExecutor == null || scoreDocs.length < 2)
+                return highlightPage(docs);
+
+            int chunk = (scoreDocs.length + searchThreads - 1) / searchThreads;
+            List<Future<String[]>> parts = new ArrayList<>();
+            for (int from = 0; from < scoreDocs.length; from += chunk) {
+                TopDocs part = new TopDocs(docs.totalHits,
+                        Arrays.copyOfRange(scoreDocs, from, Math.min(from + chunk, scoreDocs.length)));
+                parts.add(searchExecutor.submit(() -> highlightPage(part)));
+            }
+
+            String[] contexts = new String[scoreDocs.length];
+            int at = 0;
+            try {
+                for (Future<String[]> part: parts) {
+                    String[] highlighted = part.get();
+                    System.arraycopy(highlighted, 0, contexts, at, highlighted.length);
+                    at += highlighted.length;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Highlighting interrupted", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            }
+            return contexts;
+        }
+
+        /**
+         * Highlights each hit in whichever content field it has. Offsets come
+         * from the postings, which were produced by that field's own analyzer.
+         */
+        private String[] highlightPage (TopDocs docs) throws IOException {
+            if (fields.length == 1)
+                return highlighter.highlight(fields[0], query, docs);
+
+            Map<String, String[]> byField = highlighter.highlightFields(fields, query, docs);
+            String[] contexts = new String[docs.scoreDocs.length];
+            for (String field: fields) {
+                String[] highlighted = byField.get(field);
+                for (int i = 0; i < contexts.length; i++)
+                    if (contexts[i] == null)
+                        contexts[i] = highlighted[i];
+            }
+            return contexts;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!released) {
+                released = true;
+                searcherManager.release(searcher);
+            }
         }
-        return new SearchResults(results);
     }
 
-    private String languageAccurateField() {
+    /**
+     * Reads the paths of the given hits from doc values, visiting them in doc
+     * id order since doc values can only be read forwards. Stored fields are
+     * only read for documents indexed before paths had doc values.
+     */
+    private static String[] loadPaths (IndexSearcher searcher, ScoreDoc[] scoreDocs) throws IOException {
+        Integer[] order = new Integer[scoreDocs.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, Comparator.comparingInt(i -> scoreDocs[i].doc));
+
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        String[] paths = new String[scoreDocs.length];
+        LeafReaderContext leaf = null;
+        SortedDocValues values = null;
+
+        for (int i: order) {
+            int doc = scoreDocs[i].doc;
+            if (leaf == null || doc >= leaf.docBase + leaf.reader().maxDoc()) {
+                leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+                values = DocValues.getSorted(leaf.reader(), "path");
+            }
+
+            if (values.advanceExact(doc - leaf.docBase))
+                paths[i] = values.binaryValue().utf8ToString();
+            else
+                paths[i] = searcher.doc(doc, Collections.singleton("path")).get("path");
+        }
+        return paths;
+    }
+
+    private static String[] languageFields (Lang lang) {
+        if (lang == Lang.BOTH)
+            return new String[] {"contentPolish", "contentEnglish"};
+        return new String[] {languageAccurateField(lang)};
+    }
+
+    private static String languageAccurateField (Lang lang) {
         if (lang == Lang.PL)
             return ("contentPolish");
         else
             return ("contentEnglish");
     }
 
-    private Analyzer languageAccurateAnalyzer () {
+    private Analyzer languageAccurateAnalyzer (Lang lang) {
         if (lang == Lang.PL)
             return polishAnalyzer;
         else
             return englishAnalyzer;
     }
 
-    private UnifiedHighlighter languageAccurateHighlighter () {
-        if (lang == Lang.PL)
-            return polishHighlighter;
-        else
-            return englishHighlighter;
+    private UnifiedHighlighter languageAccurateHighlighter (IndexSearcher searcher, Lang lang, boolean color) {
+        UnifiedHighlighter highlighter = new SourceHighlighter(searcher, languageAccurateAnalyzer(lang), extractor);
+        highlighter.setFormatter(color ? colorFormatter : blankFormatter);
+        return highlighter;
     }
 
-    private Query phraseQuery (String field, String terms) {
-        QueryBuilder builder = new QueryBuilder(languageAccurateAnalyzer());
+    private Query phraseQuery (Lang lang, String field, String terms) {
+        QueryBuilder builder = new QueryBuilder(languageAccurateAnalyzer(lang));
         return builder.createPhraseQuery(field, terms);
     }
 
-    private Query termQuery (String field, String term) {
-        try (TokenStream tokenStream = languageAccurateAnalyzer().tokenStream(field, term)) {
+    private Query termQuery (Lang lang, String field, String term) {
+        try (TokenStream tokenStream = languageAccurateAnalyzer(lang).tokenStream(field, term)) {
             List<String> result = new ArrayList<String>();
             CharTermAttribute attr = tokenStream.addAttribute(CharTermAttribute.class);
             tokenStream.reset();
@@ -148,52 +512,106 @@ public class QueryExecutor implements AutoCloseable {
     }
 
     public Lang getLang() {
-        return lang;
+        return settings.getLang();
     }
 
     public void setLang(Lang lang) {
-        this.lang = lang;
+        settings.setLang(lang);
     }
 
     public boolean isColorOn() {
-        return color;
+        return settings.isColorOn();
     }
 
     public void setColor(boolean color) {
-        this.color = color;
-        if (color) {
-            polishHighlighter.setFormatter(colorFormatter);
-            englishHighlighter.setFormatter(colorFormatter);
-        } else {
-            polishHighlighter.setFormatter(blankFormatter);
-            englishHighlighter.setFormatter(blankFormatter);
-        }
+        settings.setColor(color);
     }
 
     public boolean areDetailsOn() {
-        return details;
+        return settings.areDetailsOn();
     }
 
     public void setDetails(boolean details) {
-        this.details = details;
+        settings.setDetails(details);
     }
 
     public void setMode (Mode mode) {
-        this.mode = mode;
+        settings.setMode(mode);
     }
 
     public Mode getMode () {
-        return this.mode;
+        return settings.getMode();
     }
 
     public void setLimit (int limit) {
-        if (limit > 0)
-            this.limit = limit;
-        else if (limit == 0)
-            this.limit = Integer.MAX_VALUE;
+        settings.setLimit(limit);
     }
 
     public int getLimit () {
-        return this.limit;
+        return settings.getLimit();
+    }
+
+    /**
+     * Sets how many results are fetched from the index at a time.
+     */
+    public void setPageSize (int pageSize) {
+        settings.setPageSize(pageSize);
+    }
+
+    public int getPageSize () {
+        return settings.getPageSize();
+    }
+
+    /**
+     * Sets how often the index is checked for new commits; 0 turns periodic refreshing off.
+     */
+    public void setRefreshSeconds (int seconds) {
+        if (seconds < 0)
+            return;
+        this.refreshSeconds = seconds;
+        if (scheduledRefresh != null)
+            scheduledRefresh.cancel(false);
+        if (seconds > 0)
+            scheduledRefresh = refresher.scheduleWithFixedDelay(this::refresh, seconds, seconds, TimeUnit.SECONDS);
+        else
+            scheduledRefresh = null;
+    }
+
+    public int getRefreshSeconds () {
+        return this.refreshSeconds;
+    }
+
+    /**
+     * Sets how much memory the result cache may take; 0 turns caching off.
+     */
+    public void setCacheBytes (long bytes) {
+        if (bytes >= 0)
+            resultCache.setMaxBytes(bytes);
+    }
+
+    public void clearCache () {
+        resultCache.clear();
+    }
+
+    /**
+     * Returns a one-line summary of the result cache's size and hit counters.
+     */
+    public String getCacheStats () {
+        return resultCache.toString();
+    }
+
+    /**
+     * Returns the current value of every search metric by name.
+     */
+    public Map<String, Number> getMetrics () {
+        return metrics.snapshot();
+    }
+
+    /**
+     * Writes a line with all search metrics to standard error every given
+     * number of seconds; they are always available through JMX.
+     */
+    public void logMetricsEvery (long seconds) {
+        metrics.logEvery(seconds);
     }
 }
\ No newline at end of file
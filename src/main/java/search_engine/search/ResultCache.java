@@ -0,0 +1,119 @@
+package search_engine.search;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import search_engine.search.SearchResults.SearchResult;
+
+/**
+ * Least recently used cache of complete result lists, highlights included,
+ * keyed by the full search request. Bounded by the estimated memory taken
+ * by the cached results. Each entry remembers the version of the index
+ * reader it was computed on and is only served for that same version.
+ */
+class ResultCache {
+
+    static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    static class Entry {
+        final long version;
+        final long count;
+        final boolean exact;
+        final List<SearchResult> results;
+        final long bytes;
+        final Map<String, Map<String, Long>> facets;
+
+        Entry (long version, long count, boolean exact, List<SearchResult> results, long bytes,
+               Map<String, Map<String, Long>> facets) {
+            this.version = version;
+            this.count = count;
+            this.exact = exact;
+            this.results = results;
+            this.bytes = bytes;
+            this.facets = facets;
+        }
+    }
+
+    private final LinkedHashMap<SearchRequest, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxBytes;
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    ResultCache (long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Entries larger than this are not worth caching, as they would evict too much.
+     */
+    synchronized long maxEntryBytes () {
+        return maxBytes / 8;
+    }
+
+    static long estimateBytes (SearchResult result) {
+        long size = 48 + 2L * result.getPath().length();
+        if (result.hasContext())
+            size += 40 + 2L * result.getContext().length();
+        return size;
+    }
+
+    synchronized Entry get (SearchRequest request, long version) {
+        Entry entry = entries.get(request);
+        if (entry != null && entry.version == version) {
+            hits++;
+            return entry;
+        }
+        misses++;
+        return null;
+    }
+
+    synchronized void put (SearchRequest request, Entry entry) {
+        if (entry.bytes > maxEntryBytes())
+            return;
+
+        Entry previous = entries.put(request, entry);
+        if (previous != null)
+            bytes -= previous.bytes;
+        bytes += entry.bytes;
+        evict();
+    }
+
+    synchronized void clear () {
+        entries.clear();
+        bytes = 0;
+    }
+
+    synchronized void setMaxBytes (long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    private void evict () {
+        for (Iterator<Map.Entry<SearchRequest, Entry>> it = entries.entrySet().iterator();
+             bytes > maxBytes && it.hasNext(); ) {
+            bytes -= it.next().getValue().bytes;
+            it.remove();
+        }
+    }
+
+    synchronized long getHits () {
+        return hits;
+    }
+
+    synchronized long getMisses () {
+        return misses;
+    }
+
+    synchronized long getBytes () {
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString () {
+        return String.format("%d entries, %d KB of %d KB, %d hits, %d misses",
+                entries.size(), bytes / 1024, maxBytes / 1024, hits, misses);
+    }
+}
@@ -0,0 +1,137 @@
+package search_engine.search;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs searches on a {@link SearchServer} listening on the loopback interface.
+ */
+public class SearchClient implements SearchService {
+
+    private final URL searchUrl;
+    private final URL refreshUrl;
+    private final URL completeUrl;
+    private final URL pageUrl;
+    private final URL closeUrl;
+    private final Gson gson = new Gson();
+
+    public SearchClient (int port) throws IOException {
+        this.searchUrl = new URL("http", "127.0.0.1", port, "/search");
+        this.refreshUrl = new URL("http", "127.0.0.1", port, "/refresh");
+        this.completeUrl = new URL("http", "127.0.0.1", port, "/complete");
+        this.pageUrl = new URL("http", "127.0.0.1", port, "/page");
+        this.closeUrl = new URL("http", "127.0.0.1", port, "/close");
+    }
+
+    @Override
+    public SearchResults search (SearchRequest request) throws IOException {
+        SearchServer.Response response = post(searchUrl, gson.toJson(request));
+        return new SearchResults(response.count, response.exact, new Pages(response)).withFacets(response.facets);
+    }
+
+    /**
+     * Serves the first page from the search response and asks the server for
+     * the following ones as they are iterated.
+     */
+    private class Pages implements SearchResults.PageSource {
+        private List<SearchResults.SearchResult> first;
+        private String cursor;
+
+        Pages (SearchServer.Response response) {
+            this.first = response.results;
+            this.cursor = response.cursor;
+        }
+
+        @Override
+        public List<SearchResults.SearchResult> nextPage() throws IOException {
+            if (first != null) {
+                List<SearchResults.SearchResult> page = first;
+                first = null;
+                return page;
+            }
+            if (cursor == null)
+                return Collections.emptyList();
+
+            SearchServer.Response response = post(pageUrl, cursorJson());
+            cursor = response.cursor;
+            return response.results;
+        }
+
+        @Override
+        public void close() throws IOException {
+            first = null;
+            if (cursor != null) {
+                String json = cursorJson();
+                cursor = null;
+                post(closeUrl, json);
+            }
+        }
+
+        private String cursorJson () {
+            SearchServer.CursorRequest request = new SearchServer.CursorRequest();
+            request.cursor = cursor;
+            return gson.toJson(request);
+        }
+    }
+
+    @Override
+    public List<String> complete (String prefix, QueryExecutor.Lang lang, int count) throws IOException {
+        SearchServer.CompletionRequest request = new SearchServer.CompletionRequest();
+        request.prefix = prefix;
+        request.lang = lang;
+        request.count = count;
+        SearchServer.Response response = post(completeUrl, gson.toJson(request));
+        return response.completions != null ? response.completions : Collections.<String>emptyList();
+    }
+
+    @Override
+    public void refresh () throws IOException {
+        post(refreshUrl, "");
+    }
+
+    @Override
+    public void close () {
+    }
+
+    private SearchServer.Response post (URL url, String json) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(json.getBytes(StandardCharsets.UTF_8));
+            }
+
+            InputStream in = connection.getResponseCode() < 400
+                    ? connection.getInputStream()
+                    : connection.getErrorStream();
+            SearchServer.Response response;
+            try (Reader body = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+                response = gson.fromJson(body, SearchServer.Response.class);
+            } catch (JsonParseException e) {
+                throw new IOException("Malformed response from server", e);
+            }
+
+            if (response == null)
+                throw new IOException("Empty response from server");
+            if (response.error != null)
+                throw new IOException(response.error);
+            return response;
+
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package search_engine.search;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+import search_engine.search.QueryExecutor.Lang;
+import search_engine.search.QueryExecutor.Mode;
+
+/**
+ * A query together with every setting that affects its results, so that
+ * queries can be run by a shared QueryExecutor or sent to a search server.
+ *
+ * Getters fall back to defaults for missing or invalid values, as requests
+ * may be deserialized from client input.
+ */
+public class SearchRequest {
+
+    private String query = "";
+    private Mode mode = Mode.TERM;
+    private Lang lang = Lang.EN;
+    private int limit = Integer.MAX_VALUE;
+    private int pageSize = 50;
+    private boolean details = false;
+    private boolean color = true;
+    private String dir = null;
+    private boolean facets = false;
+    private Map<String, String> drillDowns = new TreeMap<>();
+
+    public SearchRequest () {
+    }
+
+    public SearchRequest (SearchRequest other) {
+        this.query = other.query;
+        this.mode = other.mode;
+        this.lang = other.lang;
+        this.limit = other.limit;
+        this.pageSize = other.pageSize;
+        this.details = other.details;
+        this.color = other.color;
+        this.dir = other.dir;
+        this.facets = other.facets;
+        this.drillDowns = new TreeMap<>(other.getDrillDowns());
+    }
+
+    /**
+     * Returns a copy of these settings for the given query string.
+     */
+    public SearchRequest forQuery (String query) {
+        SearchRequest request = new SearchRequest(this);
+        request.query = query;
+        return request;
+    }
+
+    public String getQuery() {
+        return query != null ? query : "";
+    }
+
+    public Mode getMode () {
+        return mode != null ? mode : Mode.TERM;
+    }
+
+    public void setMode (Mode mode) {
+        this.mode = mode;
+    }
+
+    public Lang getLang() {
+        return lang != null ? lang : Lang.EN;
+    }
+
+    public void setLang(Lang lang) {
+        this.lang = lang;
+    }
+
+    public int getLimit () {
+        return limit > 0 ? limit : Integer.MAX_VALUE;
+    }
+
+    public void setLimit (int limit) {
+        if (limit > 0)
+            this.limit = limit;
+        else if (limit == 0)
+            this.limit = Integer.MAX_VALUE;
+    }
+
+    public int getPageSize () {
+        return pageSize > 0 ? pageSize : 50;
+    }
+
+    /**
+     * Sets how many results are fetched from the index at a time.
+     */
+    public void setPageSize (int pageSize) {
+        if (pageSize > 0)
+            this.pageSize = pageSize;
+    }
+
+    public boolean areDetailsOn() {
+        return details;
+    }
+
+    public void setDetails(boolean details) {
+        this.details = details;
+    }
+
+    public boolean isColorOn() {
+        return color;
+    }
+
+    public void setColor(boolean color) {
+        this.color = color;
+    }
+
+    /**
+     * Returns the canonical path of the directory results are restricted to,
+     * or null to search everywhere.
+     */
+    public String getDir() {
+        return dir != null && !dir.isEmpty() ? dir : null;
+    }
+
+    public void setDir(String dir) {
+        this.dir = dir;
+    }
+
+    public boolean areFacetsOn() {
+        return facets;
+    }
+
+    /**
+     * Sets whether hit counts per facet value are computed along with the results.
+     */
+    public void setFacets(boolean facets) {
+        this.facets = facets;
+    }
+
+    /**
+     * Returns the facet values results are restricted to, by dimension.
+     */
+    public Map<String, String> getDrillDowns() {
+        return drillDowns != null ? drillDowns : Collections.<String, String>emptyMap();
+    }
+
+    public void drillDown(String dimension, String value) {
+        drillDowns = new TreeMap<>(getDrillDowns());
+        drillDowns.put(dimension, value);
+    }
+
+    public void clearDrillDowns() {
+        drillDowns = new TreeMap<>();
+    }
+
+    @Override
+    public boolean equals (Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof SearchRequest))
+            return false;
+        SearchRequest other = (SearchRequest) o;
+        return getLimit() == other.getLimit() && getPageSize() == other.getPageSize()
+                && details == other.details && color == other.color && getQuery().equals(other.getQuery())
+                && getMode() == other.getMode() && getLang() == other.getLang()
+                && Objects.equals(getDir(), other.getDir()) && facets == other.facets
+                && getDrillDowns().equals(other.getDrillDowns());
+    }
+
+    @Override
+    public int hashCode () {
+        return Objects.hash(getQuery(), getMode(), getLang(), getLimit(), getPageSize(), details, color, getDir(), facets, getDrillDowns());
+    }
+}
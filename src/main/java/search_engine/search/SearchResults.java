@@ -1,9 +1,19 @@
 package search_engine.search;
 
-import java.util.Arrays;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
-public class SearchResults implements Iterable<SearchResults.SearchResult> {
+/**
+ * Results of a single query, fetched a page at a time as they are iterated.
+ * Holds on to the index searcher the query ran against until it is closed
+ * or fully iterated, so later pages are consistent with the first one.
+ */
+public class SearchResults implements Iterable<SearchResults.SearchResult>, AutoCloseable {
 
     public static class SearchResult {
 
@@ -28,21 +38,111 @@ public class SearchResults implements Iterable<SearchResults.SearchResult> {
         }
     }
 
-    private int number;
-    private SearchResult[] results;
-    private int curr = 0;
+    interface PageSource extends AutoCloseable {
+        /**
+         * Returns the next page of results, or an empty list once there are no more.
+         */
+        List<SearchResult> nextPage() throws IOException;
 
-    SearchResults(SearchResult[] results) {
-        this.number = results.length;
-        this.results = results;
+        @Override
+        void close() throws IOException;
     }
 
-    public int size() {
+    private long number;
+    private boolean exact;
+    private PageSource pages;
+    private boolean iterated = false;
+    private Map<String, Map<String, Long>> facets = Collections.emptyMap();
+
+    SearchResults(long number, boolean exact, PageSource pages) {
+        this.number = number;
+        this.exact = exact;
+        this.pages = pages;
+    }
+
+    /**
+     * Results that are already at hand, served as a single page.
+     */
+    static SearchResults of(long number, boolean exact, List<SearchResult> results) {
+        return new SearchResults(number, exact, new PageSource() {
+            private List<SearchResult> page = results;
+
+            @Override
+            public List<SearchResult> nextPage() {
+                List<SearchResult> next = page != null ? page : Collections.<SearchResult>emptyList();
+                page = null;
+                return next;
+            }
+
+            @Override
+            public void close() {
+                page = null;
+            }
+        });
+    }
+
+    public long size() {
         return number;
     }
 
+    /**
+     * Whether {@link #size()} is the exact hit count rather than a lower bound.
+     */
+    public boolean isSizeExact() {
+        return exact;
+    }
+
+    /**
+     * Returns hit counts of the top values of each facet dimension, or an
+     * empty map if facets were not requested.
+     */
+    public Map<String, Map<String, Long>> getFacets() {
+        return facets;
+    }
+
+    SearchResults withFacets(Map<String, Map<String, Long>> facets) {
+        this.facets = facets != null ? facets : Collections.<String, Map<String, Long>>emptyMap();
+        return this;
+    }
+
+    @Override
+    public void close() throws IOException {
+        pages.close();
+    }
+
     @Override
     public Iterator<SearchResult> iterator() {
-        return Arrays.asList(results).iterator();
+        if (iterated)
+            throw new IllegalStateException("Search results can only be iterated once");
+        iterated = true;
+
+        return new Iterator<SearchResult>() {
+            private Iterator<SearchResult> page = Collections.emptyIterator();
+            private boolean exhausted = false;
+
+            @Override
+            public boolean hasNext() {
+                while (!page.hasNext() && !exhausted) {
+                    try {
+                        List<SearchResult> next = pages.nextPage();
+                        if (next.isEmpty()) {
+                            exhausted = true;
+                            pages.close();
+                        } else
+                            page = next.iterator();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return page.hasNext();
+            }
+
+            @Override
+            public SearchResult next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return page.next();
+            }
+        };
     }
 }
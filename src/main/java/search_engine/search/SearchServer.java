@@ -0,0 +1,276 @@
+package search_engine.search;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import search_engine.search.SearchResults.SearchResult;
+
+/**
+ * Serves searches over HTTP on the loopback interface, so that many clients
+ * share one warm QueryExecutor.
+ *
+ * POST /search takes a JSON SearchRequest and answers with the hit count, the
+ * first page of results and, if there are more, a cursor; POST /page takes a
+ * CursorRequest and answers with the next page; POST /close drops a cursor
+ * that is no longer wanted. POST /complete takes a JSON CompletionRequest and
+ * answers with completions; POST /refresh makes the latest index commit
+ * visible.
+ *
+ * A cursor keeps its query's searcher open, so cursors left idle for
+ * {@link #CURSOR_IDLE_MILLIS} are closed by the server.
+ */
+public class SearchServer implements AutoCloseable {
+
+    static final int DEFAULT_PORT = 7700;
+    static final long CURSOR_IDLE_MILLIS = 60_000;
+
+    static class Response {
+        long count;
+        boolean exact;
+        List<SearchResult> results = new ArrayList<>();
+        String cursor;
+        Map<String, Map<String, Long>> facets;
+        List<String> completions;
+        String error;
+    }
+
+    static class CompletionRequest {
+        String prefix;
+        QueryExecutor.Lang lang;
+        int count;
+    }
+
+    static class CursorRequest {
+        String cursor;
+    }
+
+    /**
+     * Results of a query still being paged through by a client.
+     */
+    private static class Cursor {
+        final SearchResults results;
+        final Iterator<SearchResult> iterator;
+        final int pageSize;
+        long lastUsed = System.currentTimeMillis();
+        boolean closed = false;
+
+        Cursor (SearchResults results, int pageSize) {
+            this.results = results;
+            this.iterator = results.iterator();
+            this.pageSize = pageSize;
+        }
+
+        /**
+         * Moves the next page into the response, telling whether there may be more.
+         */
+        synchronized boolean fill (Response response) {
+            if (closed)
+                throw new IllegalStateException("Cursor expired");
+            lastUsed = System.currentTimeMillis();
+            while (response.results.size() < pageSize && iterator.hasNext())
+                response.results.add(iterator.next());
+            return iterator.hasNext();
+        }
+
+        synchronized boolean idleSince (long time) {
+            return lastUsed < time;
+        }
+
+        synchronized void close () {
+            closed = true;
+            try {
+                results.close();
+            } catch (IOException e) {
+                System.err.printf("Error closing results: %s%n", e.getMessage());
+            }
+        }
+    }
+
+    private final SearchService service;
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final Gson gson = new Gson();
+    private final Map<String, Cursor> cursors = new ConcurrentHashMap<>();
+
+    public SearchServer (SearchService service, int port, int handlerThreads) throws IOException {
+        this.service = service;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.handlers = Executors.newFixedThreadPool(handlerThreads);
+        server.setExecutor(handlers);
+        server.createContext("/search", this::search);
+        server.createContext("/page", this::page);
+        server.createContext("/close", this::closeCursor);
+        server.createContext("/complete", this::complete);
+        server.createContext("/refresh", this::refresh);
+    }
+
+    public void start () {
+        server.start();
+        System.out.printf("Listening on %s%n", server.getAddress());
+    }
+
+    @Override
+    public void close () {
+        server.stop(0);
+        handlers.shutdownNow();
+        for (Cursor cursor: cursors.values())
+            cursor.close();
+        cursors.clear();
+    }
+
+    private void search (HttpExchange exchange) throws IOException {
+        Response response = new Response();
+        int status = 200;
+
+        try (Reader body = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+            SearchRequest request = gson.fromJson(body, SearchRequest.class);
+            if (request == null)
+                throw new JsonParseException("Empty request");
+
+            expireCursors();
+            SearchResults results = service.search(request);
+            response.count = results.size();
+            response.exact = results.isSizeExact();
+            response.facets = results.getFacets();
+            Cursor cursor = new Cursor(results, request.getPageSize());
+            try {
+                if (cursor.fill(response)) {
+                    response.cursor = UUID.randomUUID().toString();
+                    cursors.put(response.cursor, cursor);
+                } else
+                    cursor.close();
+            } catch (RuntimeException e) {
+                cursor.close();
+                throw e;
+            }
+        } catch (JsonParseException e) {
+            status = 400;
+            response.error = e.getMessage();
+        } catch (IOException | RuntimeException e) {
+            status = 500;
+            response.error = e.getMessage();
+        }
+        respond(exchange, status, response);
+    }
+
+    private void page (HttpExchange exchange) throws IOException {
+        Response response = new Response();
+        int status = 200;
+
+        try (Reader body = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+            CursorRequest request = gson.fromJson(body, CursorRequest.class);
+            if (request == null || request.cursor == null)
+                throw new JsonParseException("Empty request");
+
+            Cursor cursor = cursors.get(request.cursor);
+            if (cursor == null) {
+                status = 404;
+                response.error = "Unknown or expired cursor";
+            } else {
+                boolean more = false;
+                try {
+                    more = cursor.fill(response);
+                } finally {
+                    if (!more && cursors.remove(request.cursor) != null)
+                        cursor.close();
+                }
+                if (more)
+                    response.cursor = request.cursor;
+            }
+        } catch (JsonParseException e) {
+            status = 400;
+            response.error = e.getMessage();
+        } catch (IOException | RuntimeException e) {
+            status = 500;
+            response.error = e.getMessage();
+        }
+        respond(exchange, status, response);
+    }
+
+    private void closeCursor (HttpExchange exchange) throws IOException {
+        Response response = new Response();
+        int status = 200;
+
+        try (Reader body = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+            CursorRequest request = gson.fromJson(body, CursorRequest.class);
+            if (request == null || request.cursor == null)
+                throw new JsonParseException("Empty request");
+            Cursor cursor = cursors.remove(request.cursor);
+            if (cursor != null)
+                cursor.close();
+        } catch (JsonParseException e) {
+            status = 400;
+            response.error = e.getMessage();
+        }
+        respond(exchange, status, response);
+    }
+
+    /**
+     * Closes the cursors of clients that went away without paging to the end.
+     */
+    private void expireCursors () {
+        long idleSince = System.currentTimeMillis() - CURSOR_IDLE_MILLIS;
+        for (Map.Entry<String, Cursor> entry: cursors.entrySet())
+            if (entry.getValue().idleSince(idleSince) && cursors.remove(entry.getKey(), entry.getValue()))
+                entry.getValue().close();
+    }
+
+    private void complete (HttpExchange exchange) throws IOException {
+        Response response = new Response();
+        int status = 200;
+
+        try (Reader body = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+            CompletionRequest request = gson.fromJson(body, CompletionRequest.class);
+            if (request == null || request.prefix == null)
+                throw new JsonParseException("Empty request");
+            response.completions = service.complete(request.prefix,
+                    request.lang != null ? request.lang : QueryExecutor.Lang.EN, request.count);
+        } catch (JsonParseException e) {
+            status = 400;
+            response.error = e.getMessage();
+        } catch (IOException | RuntimeException e) {
+            status = 500;
+            response.error = e.getMessage();
+        }
+        respond(exchange, status, response);
+    }
+
+    private void refresh (HttpExchange exchange) throws IOException {
+        Response response = new Response();
+        int status = 200;
+        try {
+            service.refresh();
+        } catch (IOException e) {
+            status = 500;
+            response.error = e.getMessage();
+        }
+        respond(exchange, status, response);
+    }
+
+    private void respond (HttpExchange exchange, int status, Response response) throws IOException {
+        byte[] json = gson.toJson(response).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, json.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(json);
+        }
+    }
+}
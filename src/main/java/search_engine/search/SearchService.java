@@ -0,0 +1,27 @@
+package search_engine.search;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Something that runs search requests: a local QueryExecutor, or a client of
+ * a search server holding one.
+ */
+public interface SearchService extends AutoCloseable {
+
+    SearchResults search (SearchRequest request) throws IOException;
+
+    /**
+     * Returns up to {@code count} indexed words starting with the prefix, most
+     * frequent first.
+     */
+    List<String> complete (String prefix, QueryExecutor.Lang lang, int count) throws IOException;
+
+    /**
+     * Makes the latest commit of the index visible to subsequent searches.
+     */
+    void refresh () throws IOException;
+
+    @Override
+    void close () throws IOException;
+}
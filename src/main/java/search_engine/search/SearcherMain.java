@@ -1,12 +1,16 @@
 package search_engine.search;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Map;
+import java.util.StringJoiner;
 
 import org.jline.terminal.Attributes;
 import org.jline.utils.AttributedStringBuilder;
 import org.jline.utils.AttributedStyle;
+import org.jline.reader.Candidate;
 import org.jline.reader.EndOfFileException;
 import org.jline.reader.LineReader;
 import org.jline.reader.LineReaderBuilder;
@@ -20,35 +24,104 @@ public class SearcherMain {
     private static Path indexPath = Paths.get(System.getProperty("user.home"),".index");
 
 	public static void main(String[] args) {
+		String usage = "java " + SearcherMain.class.getName()
+				+ " [--threads <n>] [--metrics <secs>] [--serve [<port>] | --connect [<port>]]\n";
+
+		int searchThreads = 1;
+		long metricsSeconds = 0;
+		Integer servePort = null, connectPort = null;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				switch (args[i]) {
+					case "--threads":
+						searchThreads = Integer.parseInt(args[++i]);
+						break;
+					case "--metrics":
+						metricsSeconds = Long.parseLong(args[++i]);
+						break;
+					case "--serve":
+						servePort = i + 1 < args.length && !args[i + 1].startsWith("--")
+								? Integer.parseInt(args[++i]) : SearchServer.DEFAULT_PORT;
+						break;
+					case "--connect":
+						connectPort = i + 1 < args.length && !args[i + 1].startsWith("--")
+								? Integer.parseInt(args[++i]) : SearchServer.DEFAULT_PORT;
+						break;
+					default:
+						throw new IllegalArgumentException();
+				}
+			}
+			if (servePort != null && connectPort != null)
+				throw new IllegalArgumentException();
+		} catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+			System.err.println("Usage: " + usage);
+			System.exit(1);
+		}
+
+		if (servePort != null) {
+			serve(servePort, searchThreads, metricsSeconds);
+			return;
+		}
+
 		try (Terminal terminal = TerminalBuilder.builder()
 			.jna(false)
 			.jansi(true)
 			.build()) {
 
-		    try (LineParser parser = new LineParser(indexPath)){
+		    try (LineParser parser = connectPort != null
+					? new LineParser(new SearchClient(connectPort))
+					: new LineParser(indexPath, searchThreads)) {
 
                 LineReader lineReader = LineReaderBuilder.builder()
                         .terminal(terminal)
+                        .completer((reader, line, candidates) -> {
+                            if (line.line().startsWith("%") || line.word().isEmpty())
+                                return;
+                            try {
+                                for (String completion: parser.complete(line.word()))
+                                    candidates.add(new Candidate(completion));
+                            } catch (IOException e) {
+                                System.err.printf("Error completing: %s%n", e.getMessage());
+                            }
+                        })
+                        .option(LineReader.Option.CASE_INSENSITIVE, true)
                         .build();
 
+                if (metricsSeconds > 0 && connectPort == null)
+                    parser.parseCommand("%metrics " + metricsSeconds);
+                if (terminal.getType().startsWith(Terminal.TYPE_DUMB))
+                    parser.parseCommand("%pager off");
+                else if (terminal.getHeight() > 2)
+                    parser.parseCommand("%page " + (terminal.getHeight() - 2));
+
                 while (true) {
                     try {
                         String line = lineReader.readLine("> ");
                         if (line.startsWith("%"))
                             try {
-                                parser.parseCommand(line);
+                                String message = parser.parseCommand(line);
+                                if (message != null)
+                                    terminal.writer().println(message);
                             } catch (IllegalArgumentException e) {
                                 terminal.writer().printf("Wrong command: %s%n", e.getMessage());
                             }
                         else {
-                            try {
-                                SearchResults results = parser.runQuery(line);
+                            try (SearchResults results = parser.runQuery(line)) {
                                 terminal.writer().println(new AttributedStringBuilder()
                                         .append("File count: ")
                                         .style(AttributedStyle.DEFAULT.bold())
                                         .append(String.valueOf(results.size()))
+                                        .append(results.isSizeExact() ? "" : "+")
                                         .toAnsi());
 
+                                for (Map.Entry<String, Map<String, Long>> facet: results.getFacets().entrySet()) {
+                                    StringJoiner values = new StringJoiner(", ");
+                                    for (Map.Entry<String, Long> value: facet.getValue().entrySet())
+                                        values.add(value.getKey() + " (" + value.getValue() + ")");
+                                    terminal.writer().printf("  %s: %s%n", facet.getKey(), values);
+                                }
+
+                                int printed = 0;
                                 for (SearchResult result: results) {
 
                                     AttributedStringBuilder builder = new AttributedStringBuilder();
@@ -60,8 +133,16 @@ public class SearcherMain {
                                     }
 
                                     terminal.writer().println(builder.toAnsi());
+
+                                    if (++printed % parser.getPageSize() == 0) {
+                                        terminal.flush();
+                                        if (parser.isPagerOn()
+                                                && (printed < results.size() || !results.isSizeExact())
+                                                && lineReader.readLine("-- More (q to stop) -- ").trim().equals("q"))
+                                            break;
+                                    }
                                 }
-                            } catch (IOException e) {
+                            } catch (IOException | UncheckedIOException e) {
                                 System.err.printf("Error: %s%n", e.getMessage());
                             }
 
@@ -75,4 +156,28 @@ public class SearcherMain {
 			System.err.printf("An error has occurred: %s%n", e);
 		}
 	}
+
+	/**
+	 * Keeps one QueryExecutor open and serves it to local clients until the process is stopped.
+	 */
+	private static void serve(int port, int searchThreads, long metricsSeconds) {
+		try {
+			QueryExecutor queryExecutor = new QueryExecutor(indexPath, searchThreads);
+			queryExecutor.logMetricsEvery(metricsSeconds);
+			SearchServer server = new SearchServer(queryExecutor, port,
+					Math.max(4, Runtime.getRuntime().availableProcessors()));
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				server.close();
+				try {
+					queryExecutor.close();
+				} catch (IOException e) {
+					System.err.printf("Error closing index: %s%n", e.getMessage());
+				}
+			}));
+			server.start();
+		} catch (IOException e) {
+			System.err.printf("An error has occurred: %s%n", e);
+			System.exit(1);
+		}
+	}
 }
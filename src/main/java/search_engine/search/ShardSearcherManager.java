@@ -0,0 +1,130 @@
+package search_engine.search;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import search_engine.indexer.IndexController;
+
+/**
+ * Like Lucene's SearcherManager, but searches the main index and all of its
+ * shards together through a MultiReader. A refresh reopens only the shards
+ * that have new commits, picks up shards added since and lets go of the ones
+ * that were dropped.
+ */
+class ShardSearcherManager extends ReferenceManager<IndexSearcher> {
+
+    /**
+     * The shards as one reader, with a version that changes whenever any of
+     * them does.
+     */
+    static class ShardsReader extends MultiReader {
+        private final long version;
+        private final List<DirectoryReader> shards;
+
+        ShardsReader (List<DirectoryReader> shards, long version) throws IOException {
+            super(shards.toArray(new DirectoryReader[0]), false);
+            this.shards = shards;
+            this.version = version;
+        }
+
+        long getVersion () {
+            return version;
+        }
+    }
+
+    private final Path indexPath;
+    private final ExecutorService executor;
+    private final AtomicLong versions = new AtomicLong();
+
+    ShardSearcherManager (Path indexPath, ExecutorService executor) throws IOException {
+        this.indexPath = indexPath;
+        this.executor = executor;
+        this.current = open(new HashMap<>());
+    }
+
+    static long versionOf (IndexSearcher searcher) {
+        return ((ShardsReader) searcher.getIndexReader()).getVersion();
+    }
+
+    @Override
+    protected IndexSearcher refreshIfNeeded (IndexSearcher referenceToRefresh) throws IOException {
+        Map<Path, DirectoryReader> previous = new HashMap<>();
+        for (DirectoryReader shard: ((ShardsReader) referenceToRefresh.getIndexReader()).shards)
+            previous.put(((FSDirectory) shard.directory()).getDirectory(), shard);
+        return open(previous);
+    }
+
+    /**
+     * Opens a searcher over all shards, reusing the given readers of shards
+     * that did not change. Returns null if none did and none were added or
+     * dropped.
+     */
+    private IndexSearcher open (Map<Path, DirectoryReader> previous) throws IOException {
+        List<DirectoryReader> shards = new ArrayList<>();
+        boolean changed = false;
+        try {
+            for (Path path: IndexController.shardPaths(indexPath)) {
+                if (!Files.exists(path))
+                    continue;
+                /* Readers know their directory by its real path */
+                path = path.toRealPath();
+                DirectoryReader reader = previous.remove(path);
+                if (reader == null) {
+                    Directory directory = FSDirectory.open(path);
+                    if (!DirectoryReader.indexExists(directory)) {
+                        directory.close();
+                        continue;
+                    }
+                    shards.add(DirectoryReader.open(directory));
+                    changed = true;
+                } else {
+                    DirectoryReader reopened = DirectoryReader.openIfChanged(reader);
+                    if (reopened != null) {
+                        shards.add(reopened);
+                        changed = true;
+                    } else {
+                        reader.incRef();
+                        shards.add(reader);
+                    }
+                }
+            }
+            if (!changed && previous.isEmpty() && current != null)
+                return null;
+            return new IndexSearcher(new ShardsReader(shards, versions.incrementAndGet()), executor);
+
+        } finally {
+            /* A ShardsReader takes a reference of its own to each shard */
+            for (DirectoryReader reader: shards)
+                reader.decRef();
+        }
+    }
+
+    @Override
+    protected void decRef (IndexSearcher reference) throws IOException {
+        reference.getIndexReader().decRef();
+    }
+
+    @Override
+    protected boolean tryIncRef (IndexSearcher reference) {
+        return reference.getIndexReader().tryIncRef();
+    }
+
+    @Override
+    protected int getRefCount (IndexSearcher reference) {
+        return reference.getIndexReader().getRefCount();
+    }
+}
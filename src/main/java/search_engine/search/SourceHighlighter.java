@@ -0,0 +1,101 @@
+package search_engine.search;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.uhighlight.UnifiedHighlighter;
+import search_engine.indexer.ContentExtractor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Highlighter for indices whose content is not stored. Passages are located
+ * using the offsets kept in the postings, and the text they are cut from is
+ * extracted again from the source file, but only for the documents being
+ * highlighted. Stored content is still used when a document has it.
+ *
+ * Files modified since they were indexed are not highlighted, as their
+ * offsets no longer match. The time to compare with is kept in doc values,
+ * where the indexer can update it for a file that was only touched.
+ */
+class SourceHighlighter extends UnifiedHighlighter {
+
+    private final ContentExtractor extractor;
+
+    SourceHighlighter (IndexSearcher searcher, Analyzer analyzer, ContentExtractor extractor) {
+        super(searcher, analyzer);
+        this.extractor = extractor;
+    }
+
+    @Override
+    protected List<CharSequence[]> loadFieldValues (String[] fields, DocIdSetIterator docIter,
+                                                    int cacheCharsThreshold) throws IOException {
+        Set<String> toLoad = new HashSet<>(Arrays.asList(fields));
+        toLoad.add("path");
+        toLoad.add("modified");
+
+        List<CharSequence[]> values = new ArrayList<>();
+        long chars = 0;
+        for (int docId = docIter.nextDoc(); docId != DocIdSetIterator.NO_MORE_DOCS; docId = docIter.nextDoc()) {
+            Document doc = searcher.doc(docId, toLoad);
+            String source = null;
+
+            CharSequence[] docValues = new CharSequence[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                String stored = doc.get(fields[i]);
+                if (stored == null) {
+                    if (source == null)
+                        source = loadSource(doc, modifiedOf(docId, doc));
+                    stored = source;
+                }
+                docValues[i] = stored;
+                chars += stored.length();
+            }
+            values.add(docValues);
+
+            if (chars > cacheCharsThreshold)
+                break;
+        }
+        return values;
+    }
+
+    /**
+     * Returns when the file was last seen by the indexer, from doc values or,
+     * for documents indexed before it was kept there, from the stored field.
+     */
+    private Long modifiedOf (int docId, Document doc) throws IOException {
+        List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+        NumericDocValues values = DocValues.getNumeric(leaf.reader(), "modified");
+        if (values.advanceExact(docId - leaf.docBase))
+            return values.longValue();
+
+        IndexableField stored = doc.getField("modified");
+        return stored != null ? stored.numericValue().longValue() : null;
+    }
+
+    private String loadSource (Document doc, Long modified) {
+        String path = doc.get("path");
+        if (path == null)
+            return "";
+
+        File file = new File(path);
+        if (modified == null || file.lastModified() != modified)
+            return "";
+
+        try {
+            return extractor.extract(file, getMaxLength());
+        } catch (Exception e) {
+            System.err.printf("Error reading from file %s: %s%n", path, e.getMessage());
+            return "";
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package search_engine.search;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.suggest.InputIterator;
+import org.apache.lucene.search.suggest.Lookup;
+import org.apache.lucene.search.suggest.fst.WFSTCompletionLookup;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Completes words being typed from the terms of the index, weighted by the
+ * number of live files they occur in. Each segment gets weighted FSTs of its
+ * own: one per content field, plus one of the words in its file names.
+ * Segments are keyed by their core, which deletions leave alone, so bringing
+ * the suggester up to date with a new reader only builds FSTs for segments
+ * that were added, and drops those of merged away ones.
+ *
+ * The FSTs count every file of the segment as it was built. Files deleted
+ * since are taken off at lookup time, only for the words a segment came up
+ * with: their postings are checked against the segment's deleted files, which
+ * are gathered once per set of deletions.
+ *
+ * A lookup asks every segment for its own top completions and adds up the
+ * weights. The ranking is therefore approximate: a word that just misses the
+ * top of several segments can lose to one that makes the top of a single
+ * segment, even if its total weight is higher.
+ *
+ * Content terms are completed as indexed, that is as stems or lemmas; the
+ * query analyzer reduces them to themselves.
+ */
+class TermSuggester {
+
+    static final String[] FIELDS = {"contentEnglish", "contentPolish"};
+
+    private static class Segment {
+        final Map<String, Lookup> fields = new HashMap<>();
+        Lookup names;
+    }
+
+    /**
+     * Files deleted from a segment since it was written, and how often each
+     * word occurs in their names.
+     */
+    private static class Deletions {
+        final int[] docs;
+        final Map<String, Long> nameWords = new HashMap<>();
+
+        Deletions (LeafReader reader) throws IOException {
+            Bits live = reader.getLiveDocs();
+            int[] deleted = new int[reader.numDeletedDocs()];
+            int n = 0;
+            for (int doc = 0; doc < reader.maxDoc() && n < deleted.length; doc++)
+                if (!live.get(doc))
+                    deleted[n++] = doc;
+            this.docs = n == deleted.length ? deleted : Arrays.copyOf(deleted, n);
+
+            SortedDocValues paths = reader.getSortedDocValues("path");
+            if (paths != null)
+                for (int doc: docs)
+                    if (paths.advanceExact(doc))
+                        for (String word: nameWords(paths.lookupOrd(paths.ordValue()).utf8ToString()))
+                            nameWords.merge(word, 1L, Long::sum);
+        }
+
+        /**
+         * Counts the deleted files among those the term occurs in.
+         */
+        long count (LeafReader reader, String field, BytesRef term) throws IOException {
+            Terms terms = reader.terms(field);
+            if (terms == null)
+                return 0;
+            TermsEnum iterator = terms.iterator();
+            if (!iterator.seekExact(term))
+                return 0;
+            PostingsEnum postings = iterator.postings(null, PostingsEnum.NONE);
+            long count = 0;
+            for (int doc: docs) {
+                int found = postings.docID() >= doc ? postings.docID() : postings.advance(doc);
+                if (found == DocIdSetIterator.NO_MORE_DOCS)
+                    break;
+                if (found == doc)
+                    count++;
+            }
+            return count;
+        }
+    }
+
+    private volatile Map<Object, Segment> segments = Collections.emptyMap();
+    private final Map<Object, Deletions> deletions = new ConcurrentHashMap<>();
+
+    /**
+     * Builds lookups for the segments of the reader that do not have them yet
+     * and forgets those of segments no longer in it. Not meant to be called
+     * concurrently.
+     */
+    void update (IndexReader reader) throws IOException {
+        Map<Object, Segment> previous = segments, current = new HashMap<>();
+        Set<Object> readers = new HashSet<>();
+        for (LeafReaderContext leaf: reader.leaves()) {
+            Object key = leaf.reader().getCoreCacheHelper().getKey();
+            Segment segment = current.containsKey(key) ? current.get(key) : previous.get(key);
+            current.put(key, segment != null ? segment : build(leaf.reader()));
+            readers.add(leaf.reader().getReaderCacheHelper().getKey());
+        }
+        segments = current;
+        deletions.keySet().retainAll(readers);
+    }
+
+    private static Segment build (LeafReader reader) throws IOException {
+        Segment segment = new Segment();
+        for (String field: FIELDS) {
+            Lookup lookup = newLookup();
+            Terms terms = reader.terms(field);
+            lookup.build(terms != null ? new FieldTerms(terms) : InputIterator.EMPTY);
+            segment.fields.put(field, lookup);
+        }
+        segment.names = newLookup();
+        segment.names.build(new WeightedWords(nameWords(reader)));
+        return segment;
+    }
+
+    private static Lookup newLookup () {
+        return new WFSTCompletionLookup(new ByteBuffersDirectory(), "suggest");
+    }
+
+    /**
+     * Counts the files of the segment each word of a file name occurs in.
+     */
+    private static TreeMap<String, Long> nameWords (LeafReader reader) throws IOException {
+        TreeMap<String, Long> words = new TreeMap<>();
+        Terms paths = reader.terms("path");
+        if (paths == null)
+            return words;
+
+        TermsEnum terms = paths.iterator();
+        for (BytesRef path = terms.next(); path != null; path = terms.next())
+            for (String word: nameWords(path.utf8ToString()))
+                words.merge(word, 1L, Long::sum);
+        return words;
+    }
+
+    private static Set<String> nameWords (String path) {
+        Set<String> words = new HashSet<>();
+        String name = new File(path).getName().toLowerCase(Locale.ROOT);
+        for (String word: name.split("[^\\p{L}\\p{N}]+"))
+            if (word.length() > 1)
+                words.add(word);
+        return words;
+    }
+
+    /**
+     * Returns up to {@code count} completions of the prefix, most frequent
+     * first, from the given content fields and from file names. The reader
+     * tells which files are deleted; segments it has that were not built yet
+     * are left out.
+     */
+    List<String> complete (IndexReader reader, String[] fields, String prefix, int count) throws IOException {
+        String key = prefix.toLowerCase(Locale.ROOT);
+        if (key.isEmpty())
+            return Collections.emptyList();
+
+        Map<Object, Segment> built = segments;
+        Map<String, Long> weights = new HashMap<>();
+        for (LeafReaderContext leaf: reader.leaves()) {
+            LeafReader segmentReader = leaf.reader();
+            Segment segment = built.get(segmentReader.getCoreCacheHelper().getKey());
+            if (segment == null)
+                continue;
+            Deletions deleted = segmentReader.hasDeletions() ? deletionsOf(segmentReader) : null;
+
+            Map<String, Long> found = new HashMap<>();
+            for (String field: fields)
+                for (Lookup.LookupResult result: segment.fields.get(field).lookup(key, false, count)) {
+                    long weight = result.value;
+                    if (deleted != null)
+                        weight -= deleted.count(segmentReader, field, new BytesRef(result.key));
+                    found.merge(result.key.toString(), weight, Long::sum);
+                }
+            for (Lookup.LookupResult result: segment.names.lookup(key, false, count)) {
+                String word = result.key.toString();
+                long weight = result.value;
+                if (deleted != null)
+                    weight -= deleted.nameWords.getOrDefault(word, 0L);
+                found.merge(word, weight, Long::sum);
+            }
+
+            for (Map.Entry<String, Long> word: found.entrySet())
+                if (word.getValue() > 0)
+                    weights.merge(word.getKey(), word.getValue(), Long::sum);
+        }
+
+        List<Map.Entry<String, Long>> ranked = new ArrayList<>(weights.entrySet());
+        ranked.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        List<String> completions = new ArrayList<>(Math.min(count, ranked.size()));
+        for (Map.Entry<String, Long> completion: ranked.subList(0, Math.min(count, ranked.size())))
+            completions.add(completion.getKey());
+        return completions;
+    }
+
+    private Deletions deletionsOf (LeafReader reader) throws IOException {
+        Object key = reader.getReaderCacheHelper().getKey();
+        Deletions deleted = deletions.get(key);
+        if (deleted == null) {
+            /* Two lookups may both gather them; either result will do */
+            deleted = new Deletions(reader);
+            deletions.put(key, deleted);
+        }
+        return deleted;
+    }
+
+    /**
+     * Feeds words with their weights, in order, to a lookup being built.
+     */
+    private static class WeightedWords extends Weighted {
+        private final Iterator<Map.Entry<String, Long>> words;
+
+        WeightedWords (TreeMap<String, Long> words) {
+            this.words = words.entrySet().iterator();
+        }
+
+        @Override
+        public BytesRef next () {
+            if (!words.hasNext())
+                return null;
+            Map.Entry<String, Long> word = words.next();
+            weight = word.getValue();
+            return new BytesRef(word.getKey());
+        }
+    }
+
+    /**
+     * Feeds the terms of a field of a segment, each weighted by the number of
+     * files it occurs in.
+     */
+    private static class FieldTerms extends Weighted {
+        private final TermsEnum terms;
+
+        FieldTerms (Terms field) throws IOException {
+            this.terms = field.iterator();
+        }
+
+        @Override
+        public BytesRef next () throws IOException {
+            BytesRef term = terms.next();
+            if (term != null)
+                weight = terms.docFreq();
+            return term;
+        }
+    }
+
+    private abstract static class Weighted implements InputIterator {
+        long weight;
+
+        @Override
+        public long weight () {
+            return weight;
+        }
+
+        @Override
+        public BytesRef payload () {
+            return null;
+        }
+
+        @Override
+        public boolean hasPayloads () {
+            return false;
+        }
+
+        @Override
+        public Set<BytesRef> contexts () {
+            return null;
+        }
+
+        @Override
+        public boolean hasContexts () {
+            return false;
+        }
+    }
+}